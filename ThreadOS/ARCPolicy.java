@@ -0,0 +1,103 @@
+/*
+ * @file ARCPolicy.java
+ * @brief CSS 430B O.S.
+ * Adaptive replacement cache (Megiddo and Modha). T1 holds blocks seen once
+ * recently and T2 blocks seen at least twice; the ghost lists B1 and B2
+ * remember block#s recently evicted from each. A miss that hits a ghost
+ * list moves the target size p of T1 toward whichever list would have kept
+ * the block, so the policy adapts between recency and frequency and is not
+ * flushed by a single sequential scan.
+ */
+
+import java.util.*;
+
+public class ARCPolicy implements CachePolicy {
+   private final static int T1 = 0;
+   private final static int T2 = 1;
+   private final static int NONE = -1;
+
+   private FrameList lists;
+   private int[] blockOf; // the block cached in each frame
+   private LinkedHashSet<Integer> b1; // ghosts of T1, oldest first
+   private LinkedHashSet<Integer> b2; // ghosts of T2, oldest first
+   private int c; // # frames
+   private int p; // target size of T1
+   // the ghost list each block missed but not filled yet was found in,
+   // T1 for B1 and T2 for B2, kept per block since several misses of a
+   // segment may be waiting for their frames or fills at once
+   private HashMap<Integer, Integer> ghostHits;
+   private Cache.Segment segment; // to skip busy frames
+
+   public ARCPolicy(int frames, Cache.Segment segment) {
+      this.segment = segment;
+      lists = new FrameList(frames, 2);
+      blockOf = new int[frames];
+      b1 = new LinkedHashSet<Integer>();
+      b2 = new LinkedHashSet<Integer>();
+      c = frames;
+      p = 0;
+      ghostHits = new HashMap<Integer, Integer>();
+   }
+
+   public void missed(int blockId) {
+      if (b1.contains(blockId)) { // favor recency
+         p = Math.min(c, p + Math.max(b2.size() / b1.size(), 1));
+         b1.remove(blockId);
+         ghostHits.put(blockId, T1);
+      } else if (b2.contains(blockId)) { // favor frequency
+         p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+         b2.remove(blockId);
+         ghostHits.put(blockId, T2);
+      } else {
+         ghostHits.remove(blockId); // left over from a fill that failed
+         // keep the directory at no more than 2c blocks
+         if (lists.size(T1) + b1.size() >= c) {
+            removeOldest(b1);
+         } else if (lists.size(T1) + lists.size(T2) + b1.size() + b2.size() >= 2 * c) {
+            removeOldest(b2);
+         }
+      }
+   }
+
+   public int victim(int blockId) {
+      // a block coming back from B2 takes its frame from T1 even when T1
+      // is just at its target size
+      boolean fromB2 = Integer.valueOf(T2).equals(ghostHits.get(blockId));
+      int t1 = lists.size(T1);
+      int lastT1 = lists.lastEvictable(T1, segment);
+      int lastT2 = lists.lastEvictable(T2, segment);
+      int frame;
+      if (lastT1 != NONE && (t1 > p || (fromB2 && t1 == p) || lastT2 == NONE)) {
+         frame = lastT1;
+         b1.add(blockOf[frame]);
+      } else if (lastT2 != NONE) {
+         frame = lastT2;
+         b2.add(blockOf[frame]);
+      } else {
+         return NONE;
+      }
+      lists.remove(frame);
+      return frame;
+   }
+
+   public void filled(int frame, int blockId) {
+      blockOf[frame] = blockId;
+      lists.addFirst(ghostHits.remove(blockId) == null ? T1 : T2, frame);
+   }
+
+   public void accessed(int frame) {
+      lists.addFirst(T2, frame);
+   }
+
+   public void removed(int frame) {
+      lists.remove(frame);
+   }
+
+   private void removeOldest(LinkedHashSet<Integer> ghosts) {
+      if (ghosts.isEmpty() == false) {
+         Iterator<Integer> oldest = ghosts.iterator();
+         oldest.next();
+         oldest.remove();
+      }
+   }
+}
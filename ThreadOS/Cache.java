@@ -1,168 +1,835 @@
 import java.util.*;
+import java.nio.ByteBuffer;
 
 public class Cache {
    private int blockSize;
-   private byte[][] cache = null;   // you may use: private byte[][] = null;
-   private int victim;
-   // private Vector < byte[] > pages;
+   private Segment[] segments = null;   // lock stripes, chosen by block#
+   private int segmentMask;
+   private volatile int frames;         // # frames in all segments
+   private Flusher flusher = null;      // woken up when pages get too dirty
+   private int sweep = -1;              // the last block writeBackDirty wrote
 
-   private class Entry {
+   private static class Entry {
       public static final int INVALID = -1;
-      public boolean reference;
       public boolean dirty;
+      public boolean busy;    // being loaded or written back, lock released
+      public long dirtiedAt;  // when a clean page was last made dirty
+      public int pins;        // # pin( )s not yet unpinned
       public int frame;
+      public int evicted;     // the block a busy frame is giving up, or INVALID
       public Entry() {
-         reference = false;
          dirty = false;
+         busy = false;
+         pins = 0;
          frame = INVALID;
+         evicted = INVALID;
       }
    }
 
-   private Entry[] pageTable = null;
+   // Each segment caches the blocks that hash to it in frames of its own,
+   // with its own index, free frames and replacement policy. All of its
+   // state is guarded by the segment's monitor, so threads touching
+   // different segments never contend. A frame is marked busy while its
+   // block is read from or written to the disk with the monitor released;
+   // anyone else who wants that block waits on the segment for the one
+   // transfer already in progress.
+   static class Segment {
+      private int blockSize;
+      private String policyName;
+      private ByteBuffer slab = null;     // every frame, off the Java heap
+      private ByteBuffer[] cache = null;  // frames, each a slice of the slab
+      private Entry[] pageTable = null;
+      private CachePolicy policy;      // picks the victim frames
+      private boolean resizing = false;   // new requests wait while set,
+                                          // but for threads holding pins
 
-   private int nextVictim() {
-      while (true) {
-         victim = ( victim + 1 ) % pageTable.length;  // always start from the next frame
-         if(pageTable[victim].reference == false) {
-            return victim;
-         } else {
-            pageTable[victim].reference = false;
+      // block# -> frame index: open addressing with linear probing over
+      // plain int arrays, so lookups never box a block number
+      private int[] hashKeys = null;     // block# in each slot, or EMPTY
+      private int[] hashFrames = null;   // frame holding that block
+      private int hashMask;
+
+      // frames that hold no block yet, popped on a miss
+      private int[] freeFrames = null;
+      private int freeTop;
+
+      private int dirtyCount = 0;   // # dirty frames
+      private long hits = 0;
+      private long misses = 0;
+
+      Segment(int blockSize, int frames, String policyName) {
+         this.blockSize = blockSize;
+         this.policyName = policyName;
+         allocate(frames);
+      }
+
+      // sets the segment up with frames empty frames in a new slab
+      private void allocate(int frames) {
+         slab = ByteBuffer.allocateDirect(frames * blockSize);
+         cache = new ByteBuffer[frames];
+         for (int i = 0; i < frames; i++) {
+            ByteBuffer view = slab.duplicate();
+            view.position(i * blockSize);
+            view.limit((i + 1) * blockSize);
+            cache[i] = view.slice();
+         }
+         pageTable = new Entry[frames];
+         for (int i = 0; i < frames; i++) {
+            pageTable[i] = new Entry();
+         }
+
+         // a busy frame is indexed under both its old and new block, so
+         // keep room for two keys per frame at most half full
+         int capacity = 2;
+         while (capacity < frames * 4) {
+            capacity <<= 1;
+         }
+         hashKeys = new int[capacity];
+         hashFrames = new int[capacity];
+         hashMask = capacity - 1;
+         Arrays.fill(hashKeys, EMPTY);
+
+         freeFrames = new int[frames];
+         freeTop = 0;
+         for (int i = frames - 1; i >= 0; i--) {
+            freeFrames[freeTop++] = i;
+         }
+
+         policy = newPolicy(policyName, frames, this);
+         dirtyCount = 0;
+      }
+
+      // Resizes the segment to frames frames. New requests wait until it
+      // is done and those in flight are let finish first. A thread that
+      // already holds a pin is let through, since the resize waits for
+      // that pin and the thread may need another frame before giving it
+      // up. Once no frame is pinned or busy, the rest is done without
+      // releasing the monitor, so nobody sees the segment half resized.
+      // The policy then gives up every frame in eviction order: the first
+      // ones that no longer fit are written back if dirty and dropped, and
+      // the rest are copied into a new slab and handed to a new policy in
+      // the same order, so that the blocks it values most are kept.
+      synchronized void resize(int frames) {
+         while (resizing) {
+            await();
+         }
+         resizing = true;
+         while (isQuiet() == false) {
+            await();
+         }
+
+         // drain the policy; marking the frames busy, free ones included,
+         // keeps it from offering a frame twice
+         for (int i = 0; i < pageTable.length; i++) {
+            if (pageTable[i].frame == Entry.INVALID) {
+               pageTable[i].busy = true;
+            }
+         }
+         int[] order = new int[pageTable.length];
+         int count = 0;
+         for (int frame; (frame = policy.victim(Entry.INVALID)) != -1; ) {
+            pageTable[frame].busy = true;
+            order[count++] = frame;
+         }
+
+         ByteBuffer[] oldCache = cache;
+         Entry[] oldTable = pageTable;
+         allocate(frames);
+         for (int k = 0; k < count; k++) {
+            Entry old = oldTable[order[k]];
+            if (k < count - frames) {    // evicted
+               if (old.dirty) {
+                  SysLib.rawwrite(old.frame, oldCache[order[k]]);
+               }
+               continue;
+            }
+            int frame = findInvalidPage();
+            ByteBuffer from = oldCache[order[k]].duplicate();
+            ByteBuffer to = cache[frame].duplicate();
+            from.clear();
+            to.clear();
+            to.put(from);
+            Entry entry = pageTable[frame];
+            entry.frame = old.frame;
+            setDirty(entry, old.dirty);
+            entry.dirtiedAt = old.dirtiedAt;
+            insert(old.frame, frame);
+            policy.filled(frame, old.frame);
+         }
+         resizing = false;
+         notifyAll();
+      }
+
+      // whether no frame is pinned or being transferred
+      private boolean isQuiet() {
+         for (int i = 0; i < pageTable.length; i++) {
+            if (pageTable[i].busy || pageTable[i].pins > 0) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      // whether the given frame has to be written back before reuse
+      boolean isDirty(int frame) {
+         return pageTable[frame].dirty;
+      }
+
+      // whether a policy may pick the given frame as its victim
+      boolean isEvictable(int frame) {
+         return pageTable[frame].busy == false && pageTable[frame].pins == 0;
+      }
+
+      // a view of the whole frame with its own position
+      private ByteBuffer viewOf(int frame, boolean writable) {
+         ByteBuffer view = cache[frame].duplicate();
+         view.clear();
+         return writable ? view : view.asReadOnlyBuffer();
+      }
+
+      private void setDirty(Entry entry, boolean dirty) {
+         if (dirty && entry.dirty == false) {
+            dirtyCount++;
+            entry.dirtiedAt = System.currentTimeMillis();
+         } else if (dirty == false && entry.dirty) {
+            dirtyCount--;
+         }
+         entry.dirty = dirty;
+      }
+
+      // copy a whole frame out to or in from a caller's buffer; only the
+      // lock holder, or the thread that made the frame busy, moves its
+      // position
+      private void copyOut(int frame, byte buffer[]) {
+         ByteBuffer page = cache[frame];
+         page.clear();
+         page.get(buffer, 0, page.capacity());
+      }
+
+      private void copyIn(int frame, byte buffer[]) {
+         ByteBuffer page = cache[frame];
+         page.clear();
+         page.put(buffer, 0, page.capacity());
+      }
+
+      private int hash(int blockId) {
+         return mix(blockId) & hashMask;
+      }
+
+      // returns the frame caching blockId, or -1
+      private int lookup(int blockId) {
+         for (int i = hash(blockId); hashKeys[i] != EMPTY; i = (i + 1) & hashMask) {
+            if (hashKeys[i] == blockId) {
+               return hashFrames[i];
+            }
+         }
+         return -1;
+      }
+
+      private void insert(int blockId, int frame) {
+         int i = hash(blockId);
+         while (hashKeys[i] != EMPTY && hashKeys[i] != blockId) {
+            i = (i + 1) & hashMask;
+         }
+         hashKeys[i] = blockId;
+         hashFrames[i] = frame;
+      }
+
+      // removes blockId, shifting later entries of its probe run back so
+      // that no tombstones are needed
+      private void remove(int blockId) {
+         int i = hash(blockId);
+         while (hashKeys[i] != blockId) {
+            if (hashKeys[i] == EMPTY) {
+               return;
+            }
+            i = (i + 1) & hashMask;
+         }
+         for (int j = (i + 1) & hashMask; hashKeys[j] != EMPTY; j = (j + 1) & hashMask) {
+            int home = hash(hashKeys[j]);
+            // move j into the hole at i unless its home lies in (i, j]
+            if (((j - home) & hashMask) >= ((j - i) & hashMask)) {
+               hashKeys[i] = hashKeys[j];
+               hashFrames[i] = hashFrames[j];
+               i = j;
+            }
+         }
+         hashKeys[i] = EMPTY;
+      }
+
+      // pops a frame that holds no block yet, or returns -1
+      private int findInvalidPage() {
+         return (freeTop > 0) ? freeFrames[--freeTop] : -1;
+      }
+
+      private void await() {
+         try {
+            wait();
+         } catch (InterruptedException e) {
+         }
+      }
+
+      // Called with the monitor held. Returns the frame caching blockId,
+      // waiting while another thread is still loading it, or -1 on a miss.
+      private int find(int blockId) {
+         int i;
+         while ((resizing && holdsPins() == false)
+               || ((i = lookup(blockId)) != -1 && pageTable[i].busy)) {
+            await();
+         }
+         return i;
+      }
+
+      // Called with the monitor held after a miss the policy has been told
+      // about. Takes a free frame or the policy's victim, indexes blockId
+      // to it and marks it busy, so that the caller can fill it with the
+      // monitor released. Returns -1 while a resize holds new requests
+      // back or when every frame is busy.
+      private int claim(int blockId) {
+         if (resizing && holdsPins() == false) {
+            return -1;
+         }
+         int frame = findInvalidPage();
+         if (frame == -1) {    // all pages are full, seek for a victim
+            frame = policy.victim(blockId);
+            if (frame == -1) {
+               return -1;
+            }
+         }
+         Entry entry = pageTable[frame];
+         entry.busy = true;
+         entry.evicted = entry.frame; // still indexed until it is written back
+         entry.frame = blockId;
+         insert(blockId, frame);
+         return frame;
+      }
+
+      // Called with the monitor held after a miss. Tells the policy about
+      // the miss, once however many times the claim is retried, and then
+      // claims a frame for it like claim, but waits for one. Returns -1 if
+      // blockId got cached by someone else meanwhile.
+      private int claimOrWait(int blockId) {
+         policy.missed(blockId);
+         int frame;
+         while ((frame = claim(blockId)) == -1) {
+            await();
+            if (lookup(blockId) != -1) {
+               return -1;
+            }
+         }
+         return frame;
+      }
+
+      // writes back the dirty block a claimed frame is giving up; called
+      // without the monitor by the thread that claimed the frame
+      private void writeBackEvicted(int frame) {
+         Entry entry = pageTable[frame];
+         if (entry.evicted != Entry.INVALID && entry.dirty) {
+            SysLib.rawwrite(entry.evicted, cache[frame]);
+         }
+      }
+
+      // finishes filling a claimed frame: the evicted block leaves the
+      // index and the waiters look again
+      private synchronized void complete(int frame, boolean filled, boolean dirty) {
+         Entry entry = pageTable[frame];
+         if (entry.evicted != Entry.INVALID) {
+            remove(entry.evicted);
+            entry.evicted = Entry.INVALID;
+         }
+         setDirty(entry, false);    // the evicted block was written back
+         if (filled) {
+            setDirty(entry, dirty);
+            policy.filled(frame, entry.frame);
+         } else {               // the disk refused the block
+            remove(entry.frame);
+            entry.frame = Entry.INVALID;
+            entry.pins = 0;
+            freeFrames[freeTop++] = frame;
+         }
+         entry.busy = false;
+         notifyAll();
+      }
+
+      // writes back every dirty page; a page is busy while it is written,
+      // so that it cannot change under the disk except through a pinned
+      // view, whose unpin then marks it dirty again
+      void writeBackAll() {
+         for (int i = 0; i < pageTable.length; i++) {
+            writeBack(i, false);
+         }
+      }
+
+      // writes back every dirty page and empties the segment, except for
+      // the pinned pages
+      void flush() {
+         for (int i = 0; i < pageTable.length; i++) {
+            writeBack(i, true);
+         }
+      }
+
+      private void writeBack(int frame, boolean invalidate) {
+         Entry entry;
+         int blockId;
+         synchronized (this) {
+            while (resizing || (frame < pageTable.length && pageTable[frame].busy)) {
+               await();
+            }
+            if (frame >= pageTable.length) {   // shrunk meanwhile
+               return;
+            }
+            entry = pageTable[frame];
+            if (entry.frame == Entry.INVALID) {
+               return;
+            }
+            if (entry.pins > 0) {
+               invalidate = false;
+            }
+            if (entry.dirty == false && invalidate == false) {
+               return;
+            }
+            blockId = entry.frame;
+            entry.busy = true;
+         }
+         if (entry.dirty) {
+            SysLib.rawwrite(blockId, cache[frame]);
+         }
+         synchronized (this) {
+            setDirty(entry, false);
+            if (invalidate) {
+               remove(blockId);
+               entry.frame = Entry.INVALID;
+               policy.removed(frame);
+               freeFrames[freeTop++] = frame;
+            }
+            entry.busy = false;
+            notifyAll();
+         }
+      }
+
+      // appends the dirty pages that are not busy to pages, each packed as
+      // block# << 32 | segment << 24 | frame, and returns the new count
+      private synchronized int collectDirty(long pages[], int n, int segment) {
+         for (int i = 0; i < pageTable.length && n < pages.length; i++) {
+            Entry entry = pageTable[i];
+            if (entry.dirty && entry.busy == false) {
+               pages[n++] = ((long) entry.frame << 32) | ((long) segment << 24) | i;
+            }
          }
+         return n;
+      }
+
+      // writes back frame if it still caches blockId and was made dirty
+      // before the given time; a busy page is skipped, not waited for
+      private boolean writeBackIfDirtiedBefore(int frame, int blockId, long time) {
+         Entry entry;
+         synchronized (this) {
+            if (resizing || frame >= pageTable.length) {
+               return false;
+            }
+            entry = pageTable[frame];
+            if (entry.busy || entry.frame != blockId || entry.dirty == false
+                  || entry.dirtiedAt >= time) {
+               return false;
+            }
+            entry.busy = true;
+         }
+         SysLib.rawwrite(blockId, cache[frame]);
+         synchronized (this) {
+            setDirty(entry, false);
+            entry.busy = false;
+            notifyAll();
+         }
+         return true;
       }
    }
 
-   private void writeBack(int victimEntry) {
-      if (pageTable[victimEntry].frame != Entry.INVALID &&
-         pageTable[victimEntry].dirty == true) {
-         SysLib.rawwrite(pageTable[victimEntry].frame, cache[victimEntry]);    // implement by yourself
-         pageTable[victimEntry].dirty = false;
+   private static final int EMPTY = -1;
+   private static final int maxSegments = 16;
+   private static final int minSegmentFrames = 8;
+   private static final int minFrames = 4; // a segment never has fewer
+
+   // # pins the current thread holds and has not unpinned yet
+   private static final ThreadLocal < int[] > pinsHeld = new ThreadLocal < int[] > () {
+      protected int[] initialValue() {
+         return new int[1];
       }
+   };
+
+   private static boolean holdsPins() {
+      return pinsHeld.get()[0] > 0;
+   }
+
+   // spreads consecutive block numbers over the hash tables
+   private static int mix(int blockId) {
+      int h = blockId * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   // the high bits pick the segment, the low bits the slot inside it
+   private Segment segmentOf(int blockId) {
+      return segments[(mix(blockId) >>> 24) & segmentMask];
+   }
+
+   // the replacement policies selectable at boot
+   public static final String policyNames[] = { "second-chance", "lru", "2q", "arc" };
+
+   private static CachePolicy newPolicy(String name, int frames, Segment segment) {
+      if (name.equalsIgnoreCase("lru")) {
+         return new LRUPolicy(frames, segment);
+      } else if (name.equalsIgnoreCase("2q")) {
+         return new TwoQueuePolicy(frames, segment);
+      } else if (name.equalsIgnoreCase("arc")) {
+         return new ARCPolicy(frames, segment);
+      }
+      return new SecondChancePolicy(frames, segment); // the default
    }
 
    public Cache(int blockSize, int cacheBlocks) {
-      cache = new byte[cacheBlocks][blockSize];    // instantiate pages (cache)
-      for(int i = 0; i < cacheBlocks; i++) {
-         cache[i] = new byte[blockSize];
+      this(blockSize, cacheBlocks, policyNames[0]);
+   }
+
+   public Cache(int blockSize, int cacheBlocks, String policyName) {
+      cacheBlocks = Math.max(cacheBlocks, minFrames);
+      this.blockSize = blockSize;
+      this.frames = cacheBlocks;
+
+      // a power of two segments, each keeping enough frames to be useful
+      int count = 1;
+      while (count < maxSegments && cacheBlocks / (count * 2) >= minSegmentFrames) {
+         count <<= 1;
+      }
+      segments = new Segment[count];
+      segmentMask = count - 1;
+      for (int i = 0; i < count; i++) {
+         segments[i] = new Segment(blockSize, shareOf(cacheBlocks, i), policyName);
+      }
+   }
+
+   // the frames segment i gets out of cacheBlocks
+   private int shareOf(int cacheBlocks, int i) {
+      return cacheBlocks / segments.length + (i < cacheBlocks % segments.length ? 1 : 0);
+   }
+
+   // Resizes the cache to cacheBlocks frames, at least minFrames per
+   // segment, so that a thread pinning a block can still load another.
+   // Segments are resized one after another, so that the others keep
+   // serving meanwhile. Returns the previous size.
+   public synchronized int resize(int cacheBlocks) {
+      cacheBlocks = Math.max(cacheBlocks, segments.length * minFrames);
+      int oldFrames = frames;
+      for (int i = 0; i < segments.length; i++) {
+         segments[i].resize(shareOf(cacheBlocks, i));
       }
-      
-      pageTable = new Entry[cacheBlocks];     // instantiate and initialize pageTable
-      for(int i = 0; i < cacheBlocks; i++) {
-         pageTable[i] = new Entry();
+      frames = cacheBlocks;
+      return oldFrames;
+   }
+
+   // stats[0] = hits, stats[1] = misses, stats[2] = frames,
+   // stats[3] = dirty frames
+   public void getStatistics(long stats[]) {
+      long hits = 0, misses = 0, dirty = 0;
+      for (int i = 0; i < segments.length; i++) {
+         synchronized (segments[i]) {
+            hits += segments[i].hits;
+            misses += segments[i].misses;
+            dirty += segments[i].dirtyCount;
+         }
       }
+      stats[0] = hits;
+      stats[1] = misses;
+      stats[2] = frames;
+      stats[3] = dirty;
    }
 
-   public synchronized boolean read(int blockId, byte buffer[]) {
+   public boolean read(int blockId, byte buffer[]) {
       if (blockId < 0) {
          SysLib.cerr("threadOS: a wrong blockId for cread\n");
          return false;
       }
 
-      // locate a valid page
-      for (int i = 0; i < pageTable.length; i++) {
-         if (pageTable[i].frame == blockId) {         // cache hit!!
-            // copy cache[i] to buffer
-            System.arraycopy(cache[i], 0, buffer, 0, cache[i].length);
-            pageTable[i].reference = true;
-            return true;
+      Segment segment = segmentOf(blockId);
+      int victimEntry;
+      synchronized (segment) {
+         while (true) {
+            // locate a valid page
+            int i = segment.find(blockId);
+            if (i != -1) {         // cache hit!!
+               segment.hits++;
+               // copy cache[i] to buffer
+               segment.copyOut(i, buffer);
+               segment.policy.accessed(i);
+               return true;
+            }
+
+            // page miss!! find an invalid page or a victim
+            victimEntry = segment.claimOrWait(blockId);
+            if (victimEntry != -1) {
+               segment.misses++;
+               break;
+            }
          }
       }
 
-      // page miss!!
-      int invalidPage = findInvalidPage();
-      
-      if(invalidPage != -1) {    // if we find an invalid page
-         // read the data from the disk to this cache block
-         SysLib.rawread(blockId, cache[invalidPage]);
-         pageTable[invalidPage].frame = blockId;
-         pageTable[invalidPage].reference = true;
-         return true;
+      // read a requested block from disk into the busy frame
+      segment.writeBackEvicted(victimEntry);
+      boolean filled = SysLib.rawread(blockId, segment.cache[victimEntry]) != Kernel.ERROR;
+      if (filled) {
+         segment.copyOut(victimEntry, buffer);
       }
-      
-      // if no invalid page is found, all pages are full, seek for a victim
-      int victimEntry = nextVictim();
+      segment.complete(victimEntry, filled, false);
+      return filled;
+   }
 
-      // write back a dirty copy
-      writeBack(victimEntry);
+   public boolean write(int blockId, byte buffer[]) {
+      if (blockId < 0) {
+         SysLib.cerr("threadOS: a wrong blockId for cwrite\n");
+         return false;
+      }
+
+      Segment segment = segmentOf(blockId);
+      int victimEntry;
+      synchronized (segment) {
+         while (true) {
+            // locate a valid page
+            int i = segment.find(blockId);
+            if (i != -1) {         // cache hit
+               segment.hits++;
+               // copy buffer to cache[i]
+               segment.copyIn(i, buffer);
+               segment.policy.accessed(i);
+               segment.setDirty(segment.pageTable[i], true);
+               victimEntry = -1;
+               break;
+            }
 
-      // read a requested block from disk
-      SysLib.rawread(blockId, cache[victimEntry]);
+            // page miss!! find an invalid page or a victim
+            victimEntry = segment.claimOrWait(blockId);
+            if (victimEntry != -1) {
+               segment.misses++;
+               break;
+            }
+         }
+      }
 
-      // cache it
-      // copy cache[victimEntry] to buffer
-      System.arraycopy(cache[victimEntry], 0, buffer, 0, cache[victimEntry].length);
-   
-      pageTable[victimEntry].frame = blockId;
-      pageTable[victimEntry].reference = true;
+      if (victimEntry != -1) {
+         // cache it but not write through.
+         segment.writeBackEvicted(victimEntry);
+         segment.copyIn(victimEntry, buffer);
+         segment.complete(victimEntry, true, true);
+      }
+      wakeFlusher(segment);
       return true;
    }
 
-   public synchronized boolean write(int blockId, byte buffer[]) {
-      if (blockId < 0) {
-         SysLib.cerr("threadOS: a wrong blockId for cwrite\n");
-         return false;
+   public void setFlusher(Flusher flusher) {
+      this.flusher = flusher;
+   }
+
+   // wakes the flusher once the segment just written to is dirtier than
+   // the high watermark; the count is read without the lock, so it may be
+   // a write or two behind, which is fine for a hint
+   private void wakeFlusher(Segment segment) {
+      if (flusher != null && segment.dirtyCount * 100
+            > flusher.getHighWatermark() * segment.pageTable.length) {
+         flusher.wakeup();
       }
+   }
+
+   public int getFrames() {
+      return frames;
+   }
 
-      // locate a valid page
-      for (int i = 0; i < pageTable.length; i++) {
-         if (pageTable[i].frame == blockId) {         // cache hit
-            // copy buffer to cache[i]
-            System.arraycopy(buffer, 0, cache[i], 0, buffer.length);
-            pageTable[i].reference = true;
-            pageTable[i].dirty = true;
-            return true;
+   public int dirtyFrames() {
+      int dirty = 0;
+      for (int i = 0; i < segments.length; i++) {
+         synchronized (segments[i]) {
+            dirty += segments[i].dirtyCount;
          }
       }
+      return dirty;
+   }
 
-      // page miss!!
-      int invalidPage = findInvalidPage();
-      
-      if(invalidPage != -1) {    // if we find an invalid page
-         // write the data to this cache block. 
-         // You do not have to write this data through to the disk device. 
-         System.arraycopy(buffer, 0, cache[invalidPage], 0, buffer.length);
-         pageTable[invalidPage].frame = blockId;
-         pageTable[invalidPage].reference = true;
-         pageTable[invalidPage].dirty = true;
-         return true;
+   // Writes back count dirty pages, and then every other page made dirty
+   // before dirtiedBefore, in ascending block order starting after the
+   // block the previous call stopped at, so that successive calls sweep
+   // the disk like the SCAN head. Returns the number of pages written.
+   public int writeBackDirty(int count, long dirtiedBefore) {
+      long[] pages = new long[frames];
+      int n = 0;
+      for (int i = 0; i < segments.length; i++) {
+         n = segments[i].collectDirty(pages, n, i);
       }
-      
-      // if no invalid page is found, all pages are full, seek for a victim
-      int victimEntry = nextVictim();
+      Arrays.sort(pages, 0, n);   // the block# sits in the high bits
 
-      // write back a dirty copy
-      writeBack(victimEntry);
+      int start = 0;
+      while (start < n && (int) (pages[start] >>> 32) <= sweep) {
+         start++;
+      }
+      int written = 0;
+      for (int k = 0; k < n; k++) {
+         long page = pages[(start + k) % n];
+         int blockId = (int) (page >>> 32);
+         Segment segment = segments[(int) (page >>> 24) & 0xFF];
+         int frame = (int) page & 0xFFFFFF;
+         long limit = (written < count) ? Long.MAX_VALUE : dirtiedBefore;
+         if (segment.writeBackIfDirtiedBefore(frame, blockId, limit)) {
+            written++;
+            sweep = blockId;
+         }
+      }
+      return written;
+   }
 
-      // cache it but not write through.
-      // copy buffer to cache[victimEntry]
-      System.arraycopy(buffer, 0, cache[victimEntry], 0, cache[victimEntry].length);
+   // Loads those of the first count blocks that are not cached yet with
+   // one vectored read straight into their frames, for read-ahead. A block whose segment has no frame
+   // to spare right now is skipped rather than waited for. Returns the
+   // number of blocks loaded.
+   public int prefetch(int blocks[], int count) {
+      Segment[] owners = new Segment[count];
+      int[] frames = new int[count];
+      int[] ids = new int[count];
+      int n = 0;
+      for (int i = 0; i < count; i++) {
+         if (blocks[i] < 0) {
+            continue;
+         }
+         Segment segment = segmentOf(blocks[i]);
+         synchronized (segment) {
+            if (segment.lookup(blocks[i]) != -1) {   // cached or on its way
+               continue;
+            }
+            // the policy hears of the miss only once it has a frame, so
+            // that a skipped block leaves nothing behind in it; its victim
+            // is then chosen without the miss, as fits a block only
+            // guessed to be needed
+            int frame = segment.claim(blocks[i]);
+            if (frame == -1) {
+               continue;
+            }
+            segment.policy.missed(blocks[i]);
+            owners[n] = segment;
+            frames[n] = frame;
+            ids[n++] = blocks[i];
+         }
+      }
+      if (n == 0) {
+         return 0;
+      }
 
-      pageTable[victimEntry].frame = blockId;
-      pageTable[victimEntry].reference = true;
-      pageTable[victimEntry].dirty = true;
-      return true;
+      for (int k = 0; k < n; k++) {
+         owners[k].writeBackEvicted(frames[k]);
+      }
+      ByteBuffer[] pages = new ByteBuffer[n];
+      for (int k = 0; k < n; k++) {
+         pages[k] = owners[k].cache[frames[k]];
+      }
+      boolean filled = SysLib.rawreadv(Arrays.copyOf(ids, n), pages) != Kernel.ERROR;
+      for (int k = 0; k < n; k++) {
+         owners[k].complete(frames[k], filled, false);
+      }
+      return filled ? n : 0;
    }
 
-   public synchronized void sync() {
-      for (int i = 0; i < pageTable.length; i++)
-         writeBack(i);
-      SysLib.sync();
+   // Pins blockId in the cache, loading it on a miss, and returns a view of
+   // its frame, read-only unless writable. The frame is neither evicted
+   // nor flushed out until unpin is called as many times as pin. A writer
+   // updates the view in place and unpins it dirty, instead of copying the
+   // block out and back in. Returns null if the block cannot be read.
+   public ByteBuffer pin(int blockId, boolean writable) {
+      return pin(blockId, writable, true);
    }
 
-   public synchronized void flush() {
-      for (int i = 0; i < pageTable.length; i++) {
-         writeBack(i);
-         pageTable[i].reference = false;
-         pageTable[i].frame = Entry.INVALID;
+   // Same as above, but a miss with load false zero-fills the frame
+   // instead of reading the block, for a writer that is about to
+   // overwrite all of it or that has just allocated it.
+   public ByteBuffer pin(int blockId, boolean writable, boolean load) {
+      if (blockId < 0) {
+         SysLib.cerr("threadOS: a wrong blockId for pin\n");
+         return null;
       }
-      SysLib.sync();
+
+      Segment segment = segmentOf(blockId);
+      int victimEntry;
+      synchronized (segment) {
+         while (true) {
+            int i = segment.find(blockId);
+            if (i != -1) {         // cache hit!!
+               segment.hits++;
+               segment.pageTable[i].pins++;
+               pinsHeld.get()[0]++;
+               segment.policy.accessed(i);
+               return segment.viewOf(i, writable);
+            }
+
+            // page miss!! pin the frame before it can be seen as a victim
+            victimEntry = segment.claimOrWait(blockId);
+            if (victimEntry != -1) {
+               segment.misses++;
+               segment.pageTable[victimEntry].pins++;
+               break;
+            }
+         }
+      }
+
+      segment.writeBackEvicted(victimEntry);
+      boolean filled = true;
+      if (load) {
+         filled = SysLib.rawread(blockId, segment.cache[victimEntry]) != Kernel.ERROR;
+      } else {
+         segment.copyIn(victimEntry, new byte[blockSize]);
+      }
+      segment.complete(victimEntry, filled, false);
+      if (filled == false) {
+         return null;
+      }
+      pinsHeld.get()[0]++;
+      return segment.viewOf(victimEntry, writable);
    }
 
-   public int findInvalidPage() {
-      for(int i = 0; i < pageTable.length; i++) {
-         if(pageTable[i].frame == -1) {
-            return i;
+   // releases a pin taken by pin, marking the block dirty if the view was
+   // written to. An unpin waits for a write-back of the page in progress,
+   // so that the page is dirty again after it.
+   public void unpin(int blockId, boolean dirty) {
+      Segment segment = segmentOf(blockId);
+      synchronized (segment) {
+         int i;   // not find( ): a resize waits for this very pin
+         while ((i = segment.lookup(blockId)) != -1 && segment.pageTable[i].busy) {
+            segment.await();
+         }
+         if (i == -1 || segment.pageTable[i].pins == 0) {
+            return;
+         }
+         Entry entry = segment.pageTable[i];
+         if (dirty) {
+            segment.setDirty(entry, true);
          }
+         pinsHeld.get()[0]--;
+         if (--entry.pins == 0) {
+            segment.notifyAll();   // may be a victim now
+         }
+      }
+      if (dirty) {
+         wakeFlusher(segment);
       }
-      return -1;
    }
-}
\ No newline at end of file
+
+   public void sync() {
+      writeBackAll();
+      SysLib.sync();
+   }
+
+   // writes back every dirty page without syncing the disk
+   public void writeBackAll() {
+      for (int i = 0; i < segments.length; i++) {
+         segments[i].writeBackAll();
+      }
+   }
+
+   public void flush() {
+      for (int i = 0; i < segments.length; i++) {
+         segments[i].flush();
+      }
+      SysLib.sync();
+   }
+}
@@ -0,0 +1,28 @@
+/*
+ * @file CachePolicy.java
+ * @brief CSS 430B O.S.
+ * The page replacement policy behind one Cache segment. Cache tells the policy about
+ * every hit, miss, fill and flush, and asks it for a victim frame only when
+ * no frame is free.
+ */
+
+public interface CachePolicy {
+   // blockId missed and is about to be given a frame, or, for a block
+   // read ahead, has just been given one; called once per miss, however
+   // long the miss then waits for a frame
+   void missed(int blockId);
+
+   // returns the frame to evict for blockId, or for no block in particular
+   // if it is -1, skipping frames the segment reports as busy, or -1 if
+   // every frame is busy; called only when no frame is free
+   int victim(int blockId);
+
+   // blockId is now cached in frame
+   void filled(int frame, int blockId);
+
+   // the block cached in frame was read or written
+   void accessed(int frame);
+
+   // frame was emptied without being chosen as a victim
+   void removed(int frame);
+}
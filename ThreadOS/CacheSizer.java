@@ -0,0 +1,63 @@
+/*
+ * @file CacheSizer.java
+ * @brief CSS 430B O.S.
+ * A daemon that sizes the buffer cache to the machine it runs on. Every
+ * period it looks at the miss rate since the previous check and at how
+ * much of the JVM heap is still free: it grows the cache by half while
+ * more than a tenth of the accesses miss and there is plenty of headroom,
+ * and shrinks it by a quarter as soon as the heap runs short. The frames
+ * live in direct buffers, whose limit defaults to the heap size, so heap
+ * headroom stands for the memory the cache may still take.
+ */
+
+public class CacheSizer extends Thread {
+   private final static int period = 2000; // ms between checks
+   private final static int minAccesses = 64; // fewer say nothing about the miss rate
+
+   private Cache cache;
+   private int minBlocks;
+   private int maxBlocks;
+   private long lastHits = 0;
+   private long lastMisses = 0;
+
+   public CacheSizer(Cache cache, int minBlocks, int maxBlocks) {
+      this.cache = cache;
+      this.minBlocks = minBlocks;
+      this.maxBlocks = Math.max(minBlocks, maxBlocks);
+      setDaemon(true);
+   }
+
+   // the size the cache should have now, given its current size
+   private int target(int frames, long hits, long misses) {
+      Runtime runtime = Runtime.getRuntime();
+      long headroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+      long cacheBytes = (long) frames * Disk.blockSize;
+
+      if (headroom < runtime.maxMemory() / 10) { // memory pressure
+         return Math.max(minBlocks, frames - frames / 4);
+      }
+      if (hits + misses >= minAccesses && misses * 10 > hits + misses
+            && headroom > 4 * cacheBytes) {
+         return Math.min(maxBlocks, frames + Math.max(1, frames / 2));
+      }
+      return frames;
+   }
+
+   public void run() {
+      long[] stats = new long[4];
+      while (true) {
+         try {
+            Thread.sleep(period);
+         } catch (InterruptedException e) {
+         }
+         cache.getStatistics(stats);
+         int frames = (int) stats[2];
+         int size = target(frames, stats[0] - lastHits, stats[1] - lastMisses);
+         lastHits = stats[0];
+         lastMisses = stats[1];
+         if (size != frames) {
+            cache.resize(size);
+         }
+      }
+   }
+}
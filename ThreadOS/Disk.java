@@ -1,165 +1,504 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.BitSet;
 
 public class Disk extends Thread {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
+    public static final int trackSize = 10; // blocks per track
     private final int transferTime = 20;
     private final int delayPerTrack = 1;
     private int diskSize;
+    private String fileName;         // the backing file, "DISK" by default
+    private int deviceId;            // reported with every disk interrupt
 
-    private byte data[];
+    private byte data[];             // heap image of DISK
+    private MappedByteBuffer mapped; // or DISK mapped into memory
+    private ByteBuffer image;        // whichever of the two is in use
+    private RandomAccessFile file;
+    private BitSet dirty;            // blocks written since the last sync
+    private long lastSyncBytes;      // bytes written out by the last sync
+    private long totalSyncBytes;     // bytes written out by all syncs
 
-    private int command;
     private final int IDLE = 0;
     private final int READ = 1;
     private final int WRITE = 2;
     private final int SYNC = 3;
-    private boolean readyBuffer;
+    private final int READV = 4;
+    private final int WRITEV = 5;
+
+    // request queue: read( ), write( ) and sync( ) return the slot their
+    // request was queued in, or one of these when it was not accepted
+    public static final int maxRequests = 64;
+    public static final int BUSY = -1;    // queue is full, try again
+    public static final int INVALID = -2; // never accepted
+
+    // scheduling policies for the queued requests
+    public static final int FCFS = 0;
+    public static final int SSTF = 1;
+    public static final int LOOK = 2;
+    public static final int CLOOK = 3;
+    public static final String policyNames[] = { "fcfs", "sstf", "look", "c-look" };
+
+    private class Request {
+	public int id;               // the slot this request occupies
+	public int command = IDLE;   // IDLE while the slot is free
+	public int blockId;
+	public int blocks[];         // READV and WRITEV: every block to transfer
+	public ByteBuffer pages[];   // the page each block goes to or comes from
+	public long arrival;         // arrival order for FCFS
+	public boolean ready = false;
+    }
+
+    private Request requests[];
+    private int pendingRequests;
+    private int slotWaiters;         // callers turned away with BUSY
+    private long arrivals;
+    private int policy;
+    private boolean ascending;       // the LOOK head direction
+
+    // per-policy counters: requests serviced, tracks crossed, and the
+    // simulated milliseconds spent servicing them
+    private long serviced[] = new long[ policyNames.length ];
+    private long tracksMoved[] = new long[ policyNames.length ];
+    private long busyTime[] = new long[ policyNames.length ];
 
-    private byte[] buffer;
     private int currentBlockId;
     private int targetBlockId;
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, false );
+    }
+
+    public Disk( int totalBlocks, boolean mapDisk ) {
+	this( totalBlocks, "DISK", 0, mapDisk );
+    }
+
+    public Disk( int totalBlocks, String fileName, int deviceId,
+		 boolean mapDisk ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.fileName = fileName;
+	this.deviceId = deviceId;
+	requests = new Request[ maxRequests ];
+	for ( int i = 0; i < maxRequests; i++ ) {
+	    requests[i] = new Request( );
+	    requests[i].id = i;
+	}
+	pendingRequests = 0;
+	slotWaiters = 0;
+	arrivals = 0;
+	policy = LOOK;
+	ascending = true;
 	currentBlockId = 0;
 	targetBlockId = 0;
+	dirty = new BitSet( diskSize );
+	lastSyncBytes = 0;
+	totalSyncBytes = 0;
+	if ( mapDisk )
+	    mapImage( );
+	else
+	    loadImage( );
+	image = ( mapped != null ) ? mapped : ByteBuffer.wrap( data );
+    }
+
+    // reads the whole backing file into data[]
+    private void loadImage( ) {
+	data = new byte[ diskSize * blockSize ];
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
+	    FileInputStream ifstream = new FileInputStream( fileName );
 	    int readableSize = ( ifstream.available( ) < data.length ) ?
 		ifstream.available( ) : data.length; 
 	    ifstream.read( data, 0, readableSize );
 	    ifstream.close( );
 	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
+    // maps the backing file instead, so that nothing is read up front and
+    // blocks are paged in by the host OS when first touched
+    private void mapImage( ) {
+	try {
+	    if ( new File( fileName ).exists( ) == false )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    file = new RandomAccessFile( fileName, "rw" );
+	    if ( file.length( ) < diskSize * blockSize )
+		file.setLength( diskSize * blockSize );
+	    mapped = file.getChannel( ).map( FileChannel.MapMode.READ_WRITE,
+					     0, diskSize * blockSize );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    SysLib.cerr( "threadOS: " + fileName + " not mapped, loading it instead\n" );
+	    mapped = null;
+	    loadImage( );
+	}
+    }
 
-	if ( blockId < 0 || blockId > diskSize ) {
+    public synchronized int read( int blockId, byte buffer[] ) {
+
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-	    return false;
+	    return INVALID;
 	}
-
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+	return enqueue( READ, blockId, pagesOf( buffer, 1 ) );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    public synchronized int write( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    return INVALID;
 	}
+	return enqueue( WRITE, blockId, pagesOf( buffer, 1 ) );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    // reads blocks[i] into buffer[ i * blockSize ] for every i as one
+    // request, seeking once per run of consecutive block numbers
+    public synchronized int read( int blocks[], byte buffer[] ) {
+	return read( blocks, pagesOf( buffer, blocks == null ? 0 : blocks.length ) );
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
+    // writes buffer[ i * blockSize ] to blocks[i] for every i as one request
+    public synchronized int write( int blocks[], byte buffer[] ) {
+	return write( blocks, pagesOf( buffer, blocks == null ? 0 : blocks.length ) );
+    }
+
+    // reads blocks[i] straight into pages[i] for every i; a page may be
+    // any buffer of blockSize bytes, such as a slice of a direct buffer
+    public synchronized int read( int blocks[], ByteBuffer pages[] ) {
+
+	if ( isValidVector( blocks, pages ) == false ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read" +
+			 ( blocks != null && blocks.length == 1 ? "\n" : "v\n" ) );
+	    return INVALID;
+	}
+	if ( blocks.length == 1 )
+	    return enqueue( READ, blocks[0], pages );
+	return enqueue( READV, blocks, pages );
+    }
+
+    // writes pages[i] straight to blocks[i] for every i
+    public synchronized int write( int blocks[], ByteBuffer pages[] ) {
+
+	if ( isValidVector( blocks, pages ) == false ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for write" +
+			 ( blocks != null && blocks.length == 1 ? "\n" : "v\n" ) );
+	    return INVALID;
+	}
+	if ( blocks.length == 1 )
+	    return enqueue( WRITE, blocks[0], pages );
+	return enqueue( WRITEV, blocks, pages );
+    }
+
+    // views buffer as count pages of blockSize bytes without copying it,
+    // or returns null if it is too short
+    public static ByteBuffer[] pagesOf( byte buffer[], int count ) {
+	if ( buffer == null || buffer.length < count * blockSize )
+	    return null;
+	ByteBuffer pages[] = new ByteBuffer[ count ];
+	for ( int i = 0; i < count; i++ )
+	    pages[i] = ByteBuffer.wrap( buffer, i * blockSize, blockSize ).slice( );
+	return pages;
+    }
+
+    private boolean isValidVector( int blocks[], ByteBuffer pages[] ) {
+	if ( blocks == null || blocks.length == 0 || pages == null ||
+	     pages.length < blocks.length )
 	    return false;
+	for ( int i = 0; i < blocks.length; i++ )
+	    if ( blocks[i] < 0 || blocks[i] >= diskSize ||
+		 pages[i] == null || pages[i].capacity( ) < blockSize )
+		return false;
+	return true;
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
+    public synchronized int sync( ) {
+	return enqueue( SYNC, currentBlockId, null );
+    }
+
+    // a vectored request is scheduled by its first block
+    private int enqueue( int command, int blocks[], ByteBuffer pages[] ) {
+	int slot = enqueue( command, blocks[0], pages );
+	if ( slot >= 0 )
+	    requests[slot].blocks = blocks;
+	return slot;
+    }
+
+    // queues a request in a free slot and returns the slot, or BUSY
+    private int enqueue( int command, int blockId, ByteBuffer pages[] ) {
+	for ( int i = 0; i < requests.length; i++ ) {
+	    Request request = requests[i];
+	    if ( request.command == IDLE && request.ready == false ) {
+		request.command = command;
+		request.blockId = blockId;
+		request.blocks = null;
+		request.pages = pages;
+		request.arrival = arrivals++;
+		pendingRequests++;
+		notify( );
+		return i;
+	    }
+	}
+	slotWaiters++;
+	return BUSY;
+    }
+
+    // true once the given request has completed, which also frees its slot
+    public synchronized boolean testAndResetReady( int requestId ) {
+	Request request = requests[requestId];
+	if ( request.command == IDLE && request.ready == true ) {
+	    request.ready = false;
+	    request.blocks = null;
+	    request.pages = null;
 	    return true;
 	} else
 	    return false;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
+    // true if a caller was turned away with BUSY and should now be woken
+    // up because a slot has been freed
+    public synchronized boolean takeSlotWaiter( ) {
+	if ( slotWaiters == 0 )
 	    return false;
+	slotWaiters--;
+	return true;
+    }
+
+    public synchronized boolean testReady( int requestId ) {
+	Request request = requests[requestId];
+	return request.command == IDLE && request.ready == true;
+    }
+
+    // selects the scheduling policy and returns the previous one
+    public synchronized int setPolicy( int newPolicy ) {
+	int oldPolicy = policy;
+	if ( newPolicy >= 0 && newPolicy < policyNames.length )
+	    policy = newPolicy;
+	return oldPolicy;
+    }
+
+    public int getDiskSize( ) {
+	return diskSize;
+    }
+
+    public synchronized int getPolicy( ) {
+	return policy;
+    }
+
+    // returns the policy with the given name, or -1 if there is none
+    public static int policyOf( String name ) {
+	for ( int i = 0; i < policyNames.length; i++ )
+	    if ( policyNames[i].equalsIgnoreCase( name ) )
+		return i;
+	return -1;
+    }
+
+    // fills stats with { requests serviced, tracks crossed, busy msec }
+    // for the given policy
+    public synchronized void getStatistics( int forPolicy, long stats[] ) {
+	stats[0] = serviced[forPolicy];
+	stats[1] = tracksMoved[forPolicy];
+	stats[2] = busyTime[forPolicy];
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    // waits for a request and picks the one to service next under the
+    // current policy
+    private synchronized Request waitCommand( ) {
+	while ( pendingRequests == 0 ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	Request next = null;
+	int currentTrack = currentBlockId / trackSize;
+	for ( int pass = 0; next == null; pass++ ) {
+	    for ( int i = 0; i < requests.length; i++ ) {
+		Request request = requests[i];
+		if ( request.command == IDLE )
+		    continue;
+		if ( request.command == SYNC ) { // syncs never wait on the head
+		    next = request;
+		    break;
+		}
+		if ( isCandidate( request, currentTrack, pass ) &&
+		     ( next == null || isBetter( request, next, currentTrack, pass ) ) )
+		    next = request;
+	    }
+	    if ( next == null && policy == LOOK )
+		ascending = !ascending;     // nothing ahead, turn around
+	}
+	targetBlockId = next.blockId;
+	return next;
+    }
+
+    // LOOK and C-LOOK only consider requests ahead of the head on the
+    // first pass. LOOK then turns around at once, without sweeping on to
+    // the end of the disk as SCAN would, and C-LOOK wraps around to the
+    // lowest track
+    private boolean isCandidate( Request request, int currentTrack, int pass ) {
+	int track = request.blockId / trackSize;
+	switch ( policy ) {
+	case LOOK:
+	    return ascending ? track >= currentTrack : track <= currentTrack;
+	case CLOOK:
+	    return pass > 0 || track >= currentTrack;
+	default:
+	    return true;
+	}
+    }
+
+    private boolean isBetter( Request a, Request b, int currentTrack, int pass ) {
+	if ( policy == CLOOK && pass > 0 )  // wrapped: lowest block first
+	    return a.blockId < b.blockId
+		|| ( a.blockId == b.blockId && a.arrival < b.arrival );
+	if ( policy == SSTF || policy == LOOK || policy == CLOOK ) {
+	    // the nearest first, which for LOOK and C-LOOK is ahead of the head
+	    int distanceA = Math.abs( a.blockId / trackSize - currentTrack );
+	    int distanceB = Math.abs( b.blockId / trackSize - currentTrack );
+	    if ( distanceA != distanceB )
+		return distanceA < distanceB;
+	}
+	return a.arrival < b.arrival;  // ties go to the oldest request
     }
 
-    private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+    // moves the head to targetBlockId and across the following blocks of
+    // a run, paying the transfer time once for the whole run
+    private void seek( int runLength ) {
+	int lastBlockId = targetBlockId + runLength - 1;
+	int tracks = Math.abs( targetBlockId/trackSize - currentBlockId/trackSize )
+	    + ( lastBlockId/trackSize - targetBlockId/trackSize );
+	int seekTime = transferTime + delayPerTrack * tracks;
 	try {
 	    Thread.sleep( seekTime );
 	} catch( InterruptedException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
-	currentBlockId = targetBlockId;
+	synchronized ( this ) {
+	    tracksMoved[policy] += tracks;
+	    busyTime[policy] += seekTime;
+	}
+	currentBlockId = lastBlockId;
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+    private synchronized void finishCommand( Request request ) {
+	request.command = IDLE;
+	request.ready = true;
+	pendingRequests--;
+	serviced[policy]++;
+	SysLib.disk( deviceId, request.id ); // a disk interrupt
+    }
+
+    // writes every run of adjacent dirty blocks back to DISK, so that
+    // the cost of a sync follows the number of blocks written since the
+    // previous one rather than the disk size
+    private void syncDirtyRuns( ) {
+	long written = 0;
+	try {
+	    if ( mapped == null && file == null )
+		file = new RandomAccessFile( fileName, "rw" );
+	    for ( int first = dirty.nextSetBit( 0 ); first >= 0;
+		  first = dirty.nextSetBit( first ) ) {
+		int last = dirty.nextClearBit( first );  // run is [first, last)
+		int offset = first * blockSize;
+		int length = ( last - first ) * blockSize;
+		if ( mapped != null )
+		    mapped.force( offset, length );
+		else {
+		    ByteBuffer run = ByteBuffer.wrap( data, offset, length );
+		    for ( int pos = offset; run.hasRemaining( ); )
+			pos += file.getChannel( ).write( run, pos );
+		}
+		written += length;
+		first = last;
+	    }
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+	synchronized ( this ) {
+	    lastSyncBytes = written;
+	    totalSyncBytes += written;
+	}
+    }
+
+    // bytes written back to DISK by the most recent sync
+    public synchronized long getLastSyncBytes( ) {
+	return lastSyncBytes;
+    }
+
+    // bytes written back to DISK by all syncs since boot
+    public synchronized long getTotalSyncBytes( ) {
+	return totalSyncBytes;
+    }
+
+    // the image's bytes of blockId, as a view of its own
+    private ByteBuffer blockOf( int blockId ) {
+	ByteBuffer block = image.duplicate( );
+	block.position( blockId * blockSize );
+	block.limit( blockId * blockSize + blockSize );
+	return block;
+    }
+
+    // the first blockSize bytes of page, leaving its position untouched
+    private ByteBuffer viewOf( ByteBuffer page ) {
+	ByteBuffer view = page.duplicate( );
+	view.clear( );
+	view.limit( blockSize );
+	return view;
+    }
+
+    // one bulk copy each way: no intermediate array
+    private void readBlock( int blockId, ByteBuffer page ) {
+	viewOf( page ).put( blockOf( blockId ) );
+    }
+
+    private void writeBlock( int blockId, ByteBuffer page ) {
+	blockOf( blockId ).put( viewOf( page ) );
+	dirty.set( blockId );
     }
 
     public void run ( ) {
 	
 	while ( true ) {
-	    waitCommand( );
-	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
+	    Request request = waitCommand( );
+	    // System.out.println( "Disk: command = " + request.command );
+	    switch( request.command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
+		seek( 1 );
+		readBlock( targetBlockId, request.pages[0] );
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		seek( 1 );
+		writeBlock( targetBlockId, request.pages[0] );
 		break;
-	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
+	    case READV:
+	    case WRITEV:
+		int blocks[] = request.blocks;
+		for ( int first = 0, last; first < blocks.length; first = last ) {
+		    for ( last = first + 1; last < blocks.length &&
+			      blocks[last] == blocks[last - 1] + 1; last++ )
+			;
+		    targetBlockId = blocks[first];   // one seek per run
+		    seek( last - first );
+		    for ( int i = first; i < last; i++ ) {
+			if ( request.command == READV )
+			    readBlock( blocks[i], request.pages[i] );
+			else
+			    writeBlock( blocks[i], request.pages[i] );
+		    }
 		}
+		break;
+	    case SYNC:
+		seek( 1 );
+		syncDirtyRuns( );
 		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
-	    finishCommand( );
+	    finishCommand( request );
 	}
     }
 }
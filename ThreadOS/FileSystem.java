@@ -7,11 +7,14 @@
  * @date 03/06/2023
  */
 
+import java.nio.ByteBuffer;
+
 public class FileSystem {
    // Instance variables
    private SuperBlock superblock;
    private Directory directory;
    private FileTable filetable;
+   private InodeTable inodes;
 
    // Class constants for inode states
    public final static short UNUSED = 0; 
@@ -24,11 +27,29 @@ public class FileSystem {
    private final int SEEK_CUR = 1; // set file pointer to current plus offset
    private final int SEEK_END = 2; // set file pointer to EOF plus offset
 
+   // whether file system blocks go through the buffer cache (cread/cwrite)
+   // rather than straight to the disk (rawread/rawwrite)
+   private static boolean cached = false;
+
+   // loads the blocks ahead of sequential reads into the cache, or null
+   private Prefetcher prefetcher = null;
+
    // Constructor
    public FileSystem(int diskBlocks) {
+      this(diskBlocks, false);
+   }
+
+   public FileSystem(int diskBlocks, boolean useCache) {
+      this(diskBlocks, useCache, null);
+   }
+
+   public FileSystem(int diskBlocks, boolean useCache, Prefetcher prefetcher) {
+      cached = useCache;
+      this.prefetcher = useCache ? prefetcher : null;
       superblock = new SuperBlock(diskBlocks);
       directory = new Directory(superblock.totalInodes);
-      filetable = new FileTable(directory);
+      inodes = new InodeTable();
+      filetable = new FileTable(directory, inodes);
 
       // read the "/" file from disk
       FileTableEntry dirEntry = open("/", "r");
@@ -49,9 +70,15 @@ public class FileSystem {
    // inodes to be allocated) in your file system. The return value is 0 on
    // success, otherwise -1.
    public boolean format(int files) {
-      superblock.format(files);
+      // every cached inode is stale now: forget them first, and hold the
+      // table until the fresh inodes are on disk, so that a close or the
+      // flusher cannot write an old dirty inode back over them
+      synchronized (inodes) {
+         inodes.clear();
+         superblock.format(files);
+      }
       directory = new Directory(superblock.totalInodes);
-      filetable = new FileTable(directory);
+      filetable = new FileTable(directory, inodes);
       return true;
    }
 
@@ -70,8 +97,9 @@ public class FileSystem {
    public FileTableEntry open(String fileName, String mode) {
       // filetable entry is allocated
       FileTableEntry ftEntry = filetable.falloc(fileName, mode);
-      if (mode.equals("w")) { // all blocks belonging to this file is
+      if (ftEntry != null && mode.equals("w")) { // all blocks belonging to this file is
          if (deallocAllBlocks(ftEntry) == false) { // released
+            filetable.ffree(ftEntry); // give its inode reference back
             return null;
          }
       }
@@ -111,7 +139,7 @@ public class FileSystem {
       byte[] readBuffer;
       int bufferSize = buffer.length;
       int bytesRead = 0;
-      int block, startingIndex, fileBytesToRead, toRead, blockBytesToRead;
+      int startingIndex, fileBytesToRead, toRead;
    
       bytesRead = 0;
    
@@ -131,39 +159,67 @@ public class FileSystem {
    
       synchronized(ftEntry) {
    
-         // while not end of file
-         while(bufferSize > 0 && ftEntry.seekPtr < fsize(ftEntry)) {
-            
-            block = inode.findTargetBlock(ftEntry.seekPtr);
-            if (block == -1) {   // verify block
-               return -1;
-            }
-   
-            // read disk contents into buffer
-            readBuffer = new byte[Disk.blockSize];
-            if (SysLib.rawread(block, readBuffer) == -1) {
-               return -1;
-            }
-            startingIndex = ftEntry.seekPtr % Disk.blockSize;
-   
-            blockBytesToRead = Disk.blockSize - startingIndex;    // bytes remaining to read in disk
-            fileBytesToRead = fsize(ftEntry) - ftEntry.seekPtr;   // bytes remaining to read in file
-            toRead = Math.min(Math.min(blockBytesToRead, fileBytesToRead), bufferSize);
+         fileBytesToRead = fsize(ftEntry) - ftEntry.seekPtr;   // bytes remaining to read in file
+         toRead = Math.min(fileBytesToRead, bufferSize);
+         if (toRead <= 0) {   // end of file
+            return 0;
+         }
+
+         // find every block from the seek pointer up to the last byte to read
+         startingIndex = ftEntry.seekPtr % Disk.blockSize;
+         int blockCount = (startingIndex + toRead + Disk.blockSize - 1) / Disk.blockSize;
+         // a block never written (-1) is a hole in a sparse file
+         int[] blocks = inode.findTargetBlocks(ftEntry.seekPtr, blockCount);
    
-            //copy read data into buffer
-            System.arraycopy(readBuffer, startingIndex, buffer, bytesRead, toRead);
-            seek(ftEntry, toRead, 1);
-            bytesRead += toRead;
-            bufferSize -= toRead;
-         
+         // start loading the blocks that will be read next
+         readAhead(ftEntry, ftEntry.seekPtr / Disk.blockSize,
+               (ftEntry.seekPtr + toRead - 1) / Disk.blockSize);
+
+         // read disk contents into buffer with a single request, leaving
+         // holes zeroed
+         readBuffer = new byte[blockCount * Disk.blockSize];
+         if (readBlocks(blocks, readBuffer) == -1) {
+            return -1;
          }
    
+         //copy read data into buffer
+         System.arraycopy(readBuffer, startingIndex, buffer, 0, toRead);
+         seek(ftEntry, toRead, 1);
+         bytesRead = toRead;
+   
       }
    
       // return last read position
       return bytesRead;
    }
 
+   // A read that starts where the previous read on this entry ended, or
+   // inside its last block, doubles the entry's read-ahead window up to the
+   // prefetcher's limit; any other read collapses it. The window's blocks
+   // past this read that were not requested yet go to the prefetcher, so
+   // that their I/O overlaps with this read and the caller's copying.
+   private void readAhead(FileTableEntry ftEntry, int firstBlock, int lastBlock) {
+      if (prefetcher == null) {
+         return;
+      }
+      if (firstBlock == ftEntry.nextBlock || firstBlock == ftEntry.nextBlock - 1) {
+         ftEntry.readAhead = Math.min(Math.max(ftEntry.readAhead * 2, 2),
+               prefetcher.getMaxWindow());
+      } else {
+         ftEntry.readAhead = 0;
+         ftEntry.readAheadEnd = 0;
+      }
+      ftEntry.nextBlock = lastBlock + 1;
+
+      int fileBlocks = (fsize(ftEntry) + Disk.blockSize - 1) / Disk.blockSize;
+      int from = Math.max(lastBlock + 1, ftEntry.readAheadEnd);
+      int to = Math.min(lastBlock + 1 + ftEntry.readAhead, fileBlocks);
+      if (from < to) {
+         prefetcher.prefetch(ftEntry.inode.findTargetBlocks(from * Disk.blockSize, to - from));
+         ftEntry.readAheadEnd = to;
+      }
+   }
+
    /* WRITE */
    // writes the contents of buffer to the file indicated by fd, starting at the
    // position indicated by the seek pointer. The operation may overwrite existing
@@ -178,69 +234,391 @@ public class FileSystem {
          return -1;
       }
    
-      int block, startingIndex, blockBytesToRead;
+      int startingIndex, lastIndex;
       int bytesWritten = 0;
       int bufferLength = buffer.length;
-      int blockSize = 512;
+      int blockSize = Disk.blockSize;
    
+      // entries of the same file share its in-core inode, so their
+      // writers take turns allocating blocks and updating the length
       synchronized(ftEntry) {
+         synchronized(ftEntry.inode) {
          
-         while (bufferLength > 0) {
+            if (bufferLength > 0) {
             
-            block = ftEntry.inode.findTargetBlock(ftEntry.seekPtr);
-   
-            // if we need to create a new block to write on
-            if (block == -1) {
-               short newLocation = (short) superblock.getFreeBlock();   // get a free block
+               startingIndex = ftEntry.seekPtr % blockSize;
+               int blockCount = (startingIndex + bufferLength + blockSize - 1) / blockSize;
+               int[] blocks = ftEntry.inode.findTargetBlocks(ftEntry.seekPtr, blockCount);
+               boolean[] fresh = new boolean[blockCount];
+               boolean[] allocated = new boolean[blockCount];
    
-               int registeredBlock = ftEntry.inode.registerTargetBlock(ftEntry.seekPtr, newLocation);
-   
-               if (registeredBlock == -1 || registeredBlock == -2) {
+               // if we need to create new blocks to write on; their old
+               // contents are garbage, so they are never read, and
+               // neither are preallocated blocks past the end of file
+               for (int i = 0; i < blockCount; i++) {
+                  int offset = ftEntry.seekPtr - startingIndex + i * blockSize;
+                  if (blocks[i] == -1) {
+                     if ((blocks[i] = allocateBlock(ftEntry, offset)) == -1) {
+                        // the disk is full: give back the blocks taken so
+                        // far, last first, and the index blocks they left
+                        // empty, so that the file is as it was
+                        for (int k = i - 1; k >= 0; k--) {
+                           if (allocated[k]) {
+                              releaseBlock(ftEntry, offset - (i - k) * blockSize);
+                           }
+                        }
+                        int[] index = ftEntry.inode.unregisterEmptyIndexBlocks();
+                        for (int k = 0; k < index.length; k++) {
+                           superblock.returnBlock(index[k]);
+                        }
+                        return -1;
+                     }
+                     fresh[i] = true;
+                     allocated[i] = true;
+                  } else if (offset >= ftEntry.inode.length) {
+                     fresh[i] = true;   // preallocated, still all zeros
+                  }
+               }
+               lastIndex = (startingIndex + bufferLength) % blockSize;
+
+               // blocks reserved between the end of file and this write
+               // come into the file without being written, and fallocate
+               // left them as they were on disk
+               int endBlock = (ftEntry.inode.length + blockSize - 1) / blockSize;
+               if (ftEntry.seekPtr / blockSize > endBlock &&
+                   zeroBlocks(ftEntry, endBlock, ftEntry.seekPtr / blockSize) == -1) {
                   return -1;
                }
-               
-               if (registeredBlock == -3) {
-                  short freeBlock = (short) superblock.getFreeBlock();
-                  if(!ftEntry.inode.registerIndexBlock(freeBlock) || 
-                      ftEntry.inode.registerTargetBlock(ftEntry.seekPtr, newLocation) != 0) {
+   
+               if (cached) {
+                  // update the cached blocks in place, so that small writes
+                  // to a block pile up in its frame and reach the disk once
+                  if (writeInPlace(blocks, fresh, buffer, startingIndex, lastIndex) == -1) {
+                     return -1;
+                  }
+               } else {
+                  // only the first and last blocks may be partially
+                  // overwritten, so only they need their old contents read in
+                  byte[] writeBuffer = new byte[blockCount * blockSize];
+                  if (startingIndex != 0 && !fresh[0] &&
+                      readBlockInto(blocks[0], writeBuffer, 0) == -1) {
+                     return -1;
+                  }
+                  if (lastIndex != 0 && (blockCount > 1 || startingIndex == 0) &&
+                      !fresh[blockCount - 1] &&
+                      readBlockInto(blocks[blockCount - 1], writeBuffer, (blockCount - 1) * blockSize) == -1) {
+                     return -1;
+                  }
+   
+                  // write every block with a single request
+                  System.arraycopy(buffer, 0, writeBuffer, startingIndex, bufferLength);
+                  if (writeBlocks(blocks, writeBuffer) == -1) {
                      return -1;
                   }
                }
+               ftEntry.seekPtr += bufferLength;
+               bytesWritten = bufferLength;
+
+            }
    
-               block = newLocation;
+            // update inode length
+            if (ftEntry.seekPtr > ftEntry.inode.length) {
+               ftEntry.inode.length = ftEntry.seekPtr;
             }
+         
+            // written back at close, sync or by the flusher
+            ftEntry.inode.dirty = true;
+            return bytesWritten;
+
+         }
+      }
+   }
+
+   // allocates a free block and registers it as the block including offset,
+   // registering an index block first when the direct pointers are used up.
+   // returns the new block number, or -1 on error
+   private int allocateBlock(FileTableEntry ftEntry, int offset) {
+      // get a free block, near the file's other blocks if possible
+      short newLocation = (short) superblock.getFreeBlock(placementHint(ftEntry, offset));
+      if (newLocation == -1) {
+         return -1;
+      }
+      if (registerBlock(ftEntry, offset, newLocation) == -1) {
+         superblock.returnBlock(newLocation);
+         return -1;
+      }
+      return newLocation;
+   }
+
+   // undoes allocateBlock: unregisters the block including offset and
+   // returns it to the free blocks
+   private void releaseBlock(FileTableEntry ftEntry, int offset) {
+      int block = ftEntry.inode.unregisterTargetBlock(offset);
+      if (block >= 0) {
+         superblock.returnBlock(block);
+      }
+   }
+
+   // zeroes the blocks mapped from file block first up to last
+   private int zeroBlocks(FileTableEntry ftEntry, int first, int last) {
+      int[] blocks = ftEntry.inode.findTargetBlocks(first * Disk.blockSize, last - first);
+      int mapped = 0;
+      for (int i = 0; i < blocks.length; i++) {
+         if (blocks[i] >= 0) {
+            blocks[mapped++] = blocks[i];
+         }
+      }
+      if (mapped == 0) {
+         return 0;
+      }
+      return writeBlocks(java.util.Arrays.copyOf(blocks, mapped), new byte[mapped * Disk.blockSize]);
+   }
+
+   // the block a new block including offset should go to or near: right
+   // after the block before it, else after the file's last run, else
+   // where new files start
+   private int placementHint(FileTableEntry ftEntry, int offset) {
+      if (offset >= Disk.blockSize) {
+         int previous = ftEntry.inode.findTargetBlock(offset - Disk.blockSize);
+         if (previous >= 0) {
+            return previous + 1;
+         }
+      }
+      int next = ftEntry.inode.nextContiguousBlock();
+      if (next > 0) {
+         return next;
+      }
+      return superblock.homeBlock();
+   }
+
+   // registers newLocation as the block including offset, registering
+   // the index blocks missing on the way first. returns newLocation, or
+   // -1 on error
+   private int registerBlock(FileTableEntry ftEntry, int offset, short newLocation) {
+      int registeredBlock = ftEntry.inode.registerTargetBlock(offset, newLocation);
    
-            byte[] readBuffer = new byte[blockSize];
-            if (SysLib.rawread(block, readBuffer) == -1) {
+      // register the index blocks missing on the way first, up to two
+      // of them past the indirect block
+      while (registeredBlock == -3) {
+         short freeBlock = (short) superblock.getFreeBlock(newLocation);
+         if (freeBlock == -1) {
+            return -1;
+         }
+         if (!ftEntry.inode.registerIndexBlock(offset, freeBlock)) {
+            superblock.returnBlock(freeBlock);
+            return -1;
+         }
+         registeredBlock = ftEntry.inode.registerTargetBlock(offset, newLocation);
+      }
+
+      if (registeredBlock != 0) {
+         return -1;
+      }
+      return newLocation;
+   }
+
+   // copies buffer into the cache frames of blocks, starting at byte
+   // startingIndex of the first block and ending before byte lastIndex of
+   // the last one (0 = its end). A block is read in only if the write
+   // leaves part of it as it was and it is not freshly allocated.
+   private int writeInPlace(int[] blocks, boolean[] fresh, byte[] buffer,
+         int startingIndex, int lastIndex) {
+      int copied = 0;
+      for (int i = 0; i < blocks.length; i++) {
+         int from = (i == 0) ? startingIndex : 0;
+         int to = (i == blocks.length - 1 && lastIndex != 0) ? lastIndex : Disk.blockSize;
+         boolean whole = (from == 0 && to == Disk.blockSize);
+         ByteBuffer block = pinBlock(blocks[i], true, !whole && !fresh[i]);
+         if (block == null) {
+            return -1;
+         }
+         if (fresh[i] && !whole) {   // it may still be cached with old data
+            block.put(new byte[Disk.blockSize]);
+         }
+         block.position(from);
+         block.put(buffer, copied, to - from);
+         unpinBlock(blocks[i], block, true);
+         copied += to - from;
+      }
+      return 0;
+   }
+
+   /* FALLOCATE */
+   // reserves the blocks of the file from offset for length bytes, taking
+   // them from the superblock in one go so that they come out as
+   // contiguous as it can manage. Later writes there find their blocks
+   // registered and need no allocation. Only the reserved blocks filling
+   // a hole below the end of file are zeroed, since they are the only
+   // ones a read can reach before a write; write takes those past it as
+   // fresh. The file size is left as it is. The return value is the
+   // number of blocks reserved, or -1 on error
+   public int fallocate(FileTableEntry ftEntry, int offset, int length) {
+      if (ftEntry == null || ftEntry.mode.equals("r") || offset < 0 || length <= 0) {
+         return -1;
+      }
+      int blockSize = Disk.blockSize;
+
+      synchronized(ftEntry) {
+         synchronized(ftEntry.inode) {
+            int first = offset / blockSize;
+            int count = (offset + length + blockSize - 1) / blockSize - first;
+            int[] blocks = ftEntry.inode.findTargetBlocks(first * blockSize, count);
+            int missing = 0;
+            for (int i = 0; i < count; i++) {
+               if (blocks[i] == -1) {
+                  missing++;
+               }
+            }
+            if (missing == 0) {
+               return 0;
+            }
+
+            // start the run where the range's first block would go
+            int preferred = placementHint(ftEntry, first * blockSize);
+            int[] reserved = new int[missing];
+            int got = superblock.getFreeBlocks(reserved, preferred);
+            if (got < missing) {
+               for (int i = 0; i < got; i++) {
+                  superblock.returnBlock(reserved[i]);
+               }
                return -1;
             }
-   
-            startingIndex = ftEntry.seekPtr % blockSize;
-            blockBytesToRead = blockSize - startingIndex;            // bytes remaining to read in disk
-            int toRead = Math.min(blockBytesToRead, bufferLength);
-            
-            System.arraycopy(buffer, bytesWritten, readBuffer, startingIndex, toRead);
-            SysLib.rawwrite(block, readBuffer);
-            ftEntry.seekPtr += toRead;
-            bytesWritten += toRead;
-            
-            if (blockBytesToRead > bufferLength) {
-               bufferLength = 0;
-            } else {
-               bufferLength -= blockBytesToRead;
+            for (int i = 0, n = 0; i < count; i++) {
+               if (blocks[i] == -1 &&
+                   registerBlock(ftEntry, (first + i) * blockSize, (short) reserved[n++]) == -1) {
+                  // the blocks registered so far stay in the file; the
+                  // one that failed and those after it go back
+                  for (int k = n - 1; k < missing; k++) {
+                     superblock.returnBlock(reserved[k]);
+                  }
+                  ftEntry.inode.dirty = true;
+                  return -1;
+               }
             }
+            ftEntry.inode.dirty = true;
 
+            int[] holes = new int[missing];
+            int zeroed = 0;
+            for (int i = 0, n = 0; i < count; i++) {
+               if (blocks[i] == -1) {
+                  if ((first + i) * blockSize < ftEntry.inode.length) {
+                     holes[zeroed++] = reserved[n];
+                  }
+                  n++;
+               }
+            }
+            if (zeroed > 0 && writeBlocks(java.util.Arrays.copyOf(holes, zeroed),
+                  new byte[zeroed * blockSize]) == -1) {
+               return -1;
+            }
+            return missing;
          }
-   
-         // update inode length
-         if (ftEntry.seekPtr > ftEntry.inode.length) {
-            ftEntry.inode.length = ftEntry.seekPtr;
+      }
+   }
+
+   // reads a single block into buffer at the given offset
+   private int readBlockInto(int block, byte[] buffer, int offset) {
+      byte[] readBuffer = new byte[Disk.blockSize];
+      if (readBlock(block, readBuffer) == -1) {
+         return -1;
+      }
+      System.arraycopy(readBuffer, 0, buffer, offset, Disk.blockSize);
+      return 0;
+   }
+
+   /* BLOCK I/O */
+   // every block the file system, its inodes and its superblock read or
+   // write goes through these, so that in cached mode hot metadata and data
+   // blocks are served from the buffer cache instead of the disk
+   static int readBlock(int block, byte[] buffer) {
+      return cached ? SysLib.cread(block, buffer) : SysLib.rawread(block, buffer);
+   }
+
+   static int writeBlock(int block, byte[] buffer) {
+      return cached ? SysLib.cwrite(block, buffer) : SysLib.rawwrite(block, buffer);
+   }
+
+   // blocks[i] is read into buffer[i * Disk.blockSize]; one vectored disk
+   // request when uncached. A hole (-1) is skipped, leaving zeros.
+   static int readBlocks(int[] blocks, byte[] buffer) {
+      int holes = 0;
+      for (int i = 0; i < blocks.length; i++) {
+         if (blocks[i] < 0) {
+            holes++;
          }
-         
-         ftEntry.inode.toDisk(ftEntry.iNumber);
-         return bytesWritten;
+      }
+      if (holes == blocks.length) {
+         return 0;
+      }
+      if (cached == false) {
+         if (holes == 0) {
+            return SysLib.rawreadv(blocks, buffer);
+         }
+         int[] mapped = new int[blocks.length - holes];
+         ByteBuffer[] pages = new ByteBuffer[mapped.length];
+         for (int i = 0, n = 0; i < blocks.length; i++) {
+            if (blocks[i] >= 0) {
+               mapped[n] = blocks[i];
+               pages[n++] = ByteBuffer.wrap(buffer, i * Disk.blockSize, Disk.blockSize).slice();
+            }
+         }
+         return SysLib.rawreadv(mapped, pages);
+      }
+      for (int i = 0; i < blocks.length; i++) {   // straight out of each frame
+         if (blocks[i] < 0) {
+            continue;
+         }
+         ByteBuffer block = pinBlock(blocks[i], false);
+         if (block == null) {
+            return -1;
+         }
+         block.get(buffer, i * Disk.blockSize, Disk.blockSize);
+         unpinBlock(blocks[i], block, false);
+      }
+      return 0;
+   }
+
+   // Pins a block for reading or updating in place. In cached mode the
+   // view is the cache frame itself; otherwise it is a private copy of the
+   // block, which unpinBlock writes back if it is dirty. Returns null if
+   // the block cannot be read.
+   static ByteBuffer pinBlock(int block, boolean writable) {
+      return pinBlock(block, writable, true);
+   }
 
+   // with load false the block starts out zeroed instead of being read,
+   // for callers that overwrite all of it or have just allocated it
+   static ByteBuffer pinBlock(int block, boolean writable, boolean load) {
+      if (cached) {
+         return Kernel.getCache().pin(block, writable, load);
       }
+      byte[] data = new byte[Disk.blockSize];
+      if (load && SysLib.rawread(block, data) == -1) {
+         return null;
+      }
+      return ByteBuffer.wrap(data);
+   }
+
+   static void unpinBlock(int block, ByteBuffer view, boolean dirty) {
+      if (cached) {
+         Kernel.getCache().unpin(block, dirty);
+      } else if (dirty) {
+         SysLib.rawwrite(block, view);
+      }
+   }
+
+   static int writeBlocks(int[] blocks, byte[] buffer) {
+      if (cached == false) {
+         return SysLib.rawwritev(blocks, buffer);
+      }
+      byte[] block = new byte[Disk.blockSize];
+      for (int i = 0; i < blocks.length; i++) {
+         System.arraycopy(buffer, i * Disk.blockSize, block, 0, Disk.blockSize);
+         if (SysLib.cwrite(blocks[i], block) == -1) {
+            return -1;
+         }
+      }
+      return 0;
    }
 
    /* SEEK */
@@ -266,11 +644,10 @@ public class FileSystem {
             ftEntry.seekPtr = fsize(ftEntry) + offset;
          } 
 
-         // ensure that the seek pointer does not become negative
+         // ensure that the seek pointer does not become negative; it may
+         // go past the end of the file, and a write there leaves a hole
          if (ftEntry.seekPtr < 0) {
             ftEntry.seekPtr = 0;
-         } else if (ftEntry.seekPtr > fsize(ftEntry)) { // ensure that the seek pointer does not exceed the size of the file
-            ftEntry.seekPtr = fsize(ftEntry);
          }
       } 
       // return the new seek pointer value
@@ -309,15 +686,31 @@ public class FileSystem {
       if (ftEntry.inode.count != 1) { // there is only one writer
          return false;
       }
-      // unregister the index block from inode and return as byte array
-      byte[] indexBlock = ftEntry.inode.unregisterIndexBlock();
+      // an extent-based inode hands back every block of its runs at once
+      if (ftEntry.inode.isExtentBased()) {
+         int[] blocks = ftEntry.inode.unregisterExtents();
+         for (int i = 0; i < blocks.length; i++) {
+            superblock.returnBlock(blocks[i]);
+         }
+         return true;
+      }
+      // unregister the index block from inode and return its entries
+      int indexBlockNumber = ftEntry.inode.findIndexBlock();
+      short[] indexBlock = ftEntry.inode.unregisterIndexBlock();
       if (indexBlock != null) {
-         int offset = 0;
-         short blockNumber;
-         // loop thru the block numbers and return each block to the superblock
-         while ((blockNumber = SysLib.bytes2short(indexBlock, offset)) != -1) {
-            superblock.returnBlock((int) blockNumber);
+         // loop thru the block numbers and return each block to the superblock,
+         // skipping holes, then the index block itself
+         for (int i = 0; i < indexBlock.length; i++) {
+            if (indexBlock[i] >= 0) {
+               superblock.returnBlock((int) indexBlock[i]);
+            }
          }
+         superblock.returnBlock(indexBlockNumber);
+      }
+      // then every block under the double indirect block
+      int[] doubleBlocks = ftEntry.inode.unregisterDoubleIndirect();
+      for (int i = 0; i < doubleBlocks.length; i++) {
+         superblock.returnBlock(doubleBlocks[i]);
       }
       // loop thru all direct blocks and return each one to superblock
       for (int i = 0; i < ftEntry.inode.directSize; i++) {
@@ -328,17 +721,29 @@ public class FileSystem {
             ftEntry.inode.direct[i] = -1;
          }
       }
-      // save the inode changes to the disk
-      ftEntry.inode.toDisk(ftEntry.iNumber);
+      // the inode changes reach the disk when the file is closed
+      ftEntry.inode.dirty = true;
       // then return true aka success
       return true;
    }
 
-   public void sync() {
+   // writes the directory and superblock back; in cached mode they, like
+   // every other dirty block, stay in the cache until it is written back.
+   // Syncs are serialized, since each one opens "/" for writing.
+   public synchronized void sync() {
       byte[] tempData = directory.directory2bytes();
       FileTableEntry root = open("/", "w");
       write(root, tempData);
       close(root);
+      inodes.sync();
       superblock.sync();
    }
+
+   public InodeTable getInodeTable() {
+      return inodes;
+   }
+
+   public boolean isCached() {
+      return cached;
+   }
 }
\ No newline at end of file
@@ -24,18 +24,21 @@ public class FileTable {
    // Instance variables
    private Vector < FileTableEntry > table; // the actual entity of this file table
    private Directory dir; // the root directory
+   private InodeTable inodes; // the in-core inodes shared by all entries
 
    // Constructor
-   public FileTable(Directory directory) { // constructor
+   public FileTable(Directory directory, InodeTable inodeTable) { // constructor
       table = new Vector < FileTableEntry > (); // instantiate a file (structure) table
       dir = directory; // receive a reference to the Director from the file system
+      inodes = inodeTable;
    }
 
    /* FALLOC */
    // allocate a new file (structure) table entry for this file name
    // allocate/retrieve and register the corresponding inode using dir
-   // increment this inode's count
-   // immediately write back this inode to the disk
+   // take a reference to the in-core inode, which increments its count
+   // mark a newly allocated inode for writing back; opening an existing
+   // file changes nothing on disk, the count being kept in core only
    // return a reference to this file (structure) table entry
    public synchronized FileTableEntry falloc(String filename, String mode) {
 
@@ -54,19 +57,22 @@ public class FileTable {
             if ((iNumber) == (short) -1) {
                return null;
             }
-            inode = new Inode(iNumber);
+            inode = inodes.iget(iNumber);
+            inode.dirty = true; // a new file, written back at close
             break;
 
          } else {
             
-            inode = new Inode(iNumber);
+            inode = inodes.iget(iNumber);
             if (inode.flag == USED || inode.flag == UNUSED) {
                break;
             } else if (inode.flag == DELETE) {
+               inodes.iput(iNumber);
                return null;
             } else if (inode.flag == READ && inputMode == READONLY) {
                break;
             } else {
+               inodes.iput(iNumber);
                try {
                   wait();
                } catch (InterruptedException e) {}
@@ -75,10 +81,8 @@ public class FileTable {
          }
       }
 
-      // Update the inode on disk and create a new file table entry for the file.
-      // this is derived from the professor
-      inode.count++;
-      inode.toDisk(iNumber);
+      // Create a new file table entry for the file. this is derived from
+      // the professor
       FileTableEntry ftEntry = new FileTableEntry(inode, iNumber, mode);
       table.addElement(ftEntry); // create a table entry and register it
       return ftEntry; // returning a FileTableEntry object
@@ -105,14 +109,14 @@ public class FileTable {
    // free this file table entry.
    // return true if this file table entry found in my table
    public synchronized boolean ffree(FileTableEntry ftEntry) { // e means ftEntry
-      // Create a new inode object corresponding to the entry's iNumber
-      Inode inode = new Inode(ftEntry.iNumber);
+      // The in-core inode shared by every entry of this file
+      Inode inode = ftEntry.inode;
 
       // Attempt to remove the entry from the file table
       if (table.remove(ftEntry)) {
          // If the entry was removed successfully:
          // Decrease the count of users of that file
-         inode.count--;
+         inodes.iput(ftEntry.iNumber);
 
          // If the file was being read from:
          if (inode.flag == 1) {
@@ -134,8 +138,10 @@ public class FileTable {
             notifyAll();
          }
 
-         // - Save the corresponding inode to the disk
-         inode.toDisk(ftEntry.iNumber);
+         // - Save the corresponding inode to the disk, along with the other
+         // dirty inodes of its block, if anything of it changed since it
+         // was last saved; a file only read writes nothing back
+         inodes.writeBack(ftEntry.iNumber);
 
          // Return true to indicate that the entry was found in the file table and
          // removed
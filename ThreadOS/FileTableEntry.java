@@ -5,6 +5,9 @@ public class FileTableEntry {  // Each table entry should have
    public final short iNumber;//    this inode number
    public int count;          //    a count to maintain #threads sharing this
    public final String mode;  //    "r", "w", "w+", or "a"
+   public int nextBlock;      //    the file block a sequential read goes on at
+   public int readAhead;      //    the read-ahead window in blocks
+   public int readAheadEnd;   //    file blocks below this were prefetched
    
    FileTableEntry( Inode i, short inumber, String m ) {
       seekPtr = 0;           // the seek pointer is set to the file top.
@@ -12,6 +15,9 @@ public class FileTableEntry {  // Each table entry should have
       iNumber = inumber;     
       count = 1;           // at least one thread is using this entry.
       mode = m;            // once file access mode is set, it never changes.
+      nextBlock = 0;       // a read from the file top counts as sequential.
+      readAhead = 0;
+      readAheadEnd = 0;
 
       if ( mode.compareTo( "a" ) == 0 ) {
          seekPtr = inode.length;
@@ -0,0 +1,146 @@
+/*
+ * @file Flusher.java
+ * @brief CSS 430B O.S.
+ * A daemon that writes dirty cache pages back in the background, so that
+ * neither a missing reader nor csync has to pay for all of them. It wakes
+ * up every interval, or as soon as the cache reports crossing the high
+ * watermark, then writes pages back until the dirty ratio falls to the
+ * low watermark, along with every page that has stayed dirty longer than
+ * the age limit. Pages go out in ascending block order, continuing where
+ * the previous pass stopped, so the disk head sweeps instead of seeking.
+ * Once an interval it also writes back the file system's dirty inodes,
+ * which then go out with the rest of the cache.
+ */
+
+public class Flusher extends Thread {
+   // tunables, see set()
+   public final static int HIGH_WATERMARK = 0; // % dirty frames that starts a flush
+   public final static int LOW_WATERMARK = 1; // % dirty frames that ends it
+   public final static int MAX_AGE = 2; // ms a page may stay dirty
+   public final static int INTERVAL = 3; // ms between checks
+   public final static String paramNames[] = { "high", "low", "age", "interval" };
+
+   private Cache cache;
+   private volatile InodeTable inodes = null; // none until the file system is up
+   private long inodesSynced = 0; // when the inodes were last written back
+   private volatile int highWatermark = 50;
+   private volatile int lowWatermark = 25;
+   private volatile int maxAge = 3000;
+   private volatile int interval = 500;
+
+   private boolean kicked = false; // the high watermark was crossed
+   private long passes = 0; // passes that wrote something
+   private long watermarkWrites = 0; // pages written to get below low
+   private long ageWrites = 0; // pages written for being too old
+
+   public Flusher(Cache cache) {
+      this.cache = cache;
+      setDaemon(true);
+   }
+
+   // sets a tunable and returns its previous value; a negative value only
+   // reads it. The low watermark never exceeds the high one.
+   public synchronized int set(int param, int value) {
+      int old;
+      switch (param) {
+         case HIGH_WATERMARK:
+            old = highWatermark;
+            if (value >= 0) {
+               highWatermark = Math.min(value, 100);
+               lowWatermark = Math.min(lowWatermark, highWatermark);
+            }
+            break;
+         case LOW_WATERMARK:
+            old = lowWatermark;
+            if (value >= 0) {
+               lowWatermark = Math.min(value, highWatermark);
+            }
+            break;
+         case MAX_AGE:
+            old = maxAge;
+            if (value >= 0) {
+               maxAge = value;
+            }
+            break;
+         case INTERVAL:
+            old = interval;
+            if (value > 0) {
+               interval = value;
+            }
+            break;
+         default:
+            return -1;
+      }
+      notify(); // apply it right away
+      return old;
+   }
+
+   public void setInodeTable(InodeTable inodes) {
+      this.inodes = inodes;
+   }
+
+   public int getHighWatermark() {
+      return highWatermark;
+   }
+
+   // stats[0] = passes that wrote pages, stats[1] = pages written to get
+   // below the low watermark, stats[2] = pages written for their age,
+   // stats[3] = dirty frames now, stats[4] = frames in the cache
+   public void getStatistics(long stats[]) {
+      synchronized (this) {
+         stats[0] = passes;
+         stats[1] = watermarkWrites;
+         stats[2] = ageWrites;
+      }
+      stats[3] = cache.dirtyFrames(); // without our monitor, see wakeup()
+      stats[4] = cache.getFrames();
+   }
+
+   // called by the cache, holding no lock of its own, once it is dirtier
+   // than the high watermark
+   public synchronized void wakeup() {
+      kicked = true;
+      notify();
+   }
+
+   private synchronized void waitForWork() {
+      if (kicked == false) {
+         try {
+            wait(interval);
+         } catch (InterruptedException e) {
+         }
+      }
+      kicked = false;
+   }
+
+   public void run() {
+      while (true) {
+         waitForWork();
+
+         // a kick does not count as an interval for the inodes, so that
+         // a write-heavy workload saves its inode blocks once per interval
+         long now = System.currentTimeMillis();
+         if (inodes != null && now - inodesSynced >= interval) {
+            inodes.sync();
+            inodesSynced = now;
+         }
+
+         int frames = cache.getFrames();
+         int dirty = cache.dirtyFrames();
+         int count = 0;
+         if (dirty * 100 > highWatermark * frames) {
+            count = dirty - lowWatermark * frames / 100;
+         }
+         long dirtiedBefore = System.currentTimeMillis() - maxAge;
+
+         int written = cache.writeBackDirty(count, dirtiedBefore);
+         if (written > 0) {
+            synchronized (this) {
+               passes++;
+               watermarkWrites += Math.min(count, written);
+               ageWrites += Math.max(written - count, 0);
+            }
+         }
+      }
+   }
+}
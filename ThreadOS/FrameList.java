@@ -0,0 +1,94 @@
+/*
+ * @file FrameList.java
+ * @brief CSS 430B O.S.
+ * Doubly linked lists of cache frames kept in plain int arrays, used by
+ * the cache replacement policies. Each frame is in at most one list at a
+ * time. The head of a list is its most recently used end.
+ */
+
+public class FrameList {
+   public final static int NONE = -1;
+
+   private int[] prev; // previous frame toward the head, or NONE
+   private int[] next; // next frame toward the tail, or NONE
+   private int[] owner; // the list each frame is in, or NONE
+   private int[] head;
+   private int[] tail;
+   private int[] size;
+
+   public FrameList(int frames, int lists) {
+      prev = new int[frames];
+      next = new int[frames];
+      owner = new int[frames];
+      for (int i = 0; i < frames; i++) {
+         owner[i] = NONE;
+      }
+      head = new int[lists];
+      tail = new int[lists];
+      size = new int[lists];
+      for (int i = 0; i < lists; i++) {
+         head[i] = tail[i] = NONE;
+      }
+   }
+
+   // puts frame at the head of list, taking it out of its current list
+   public void addFirst(int list, int frame) {
+      remove(frame);
+      prev[frame] = NONE;
+      next[frame] = head[list];
+      if (head[list] != NONE) {
+         prev[head[list]] = frame;
+      } else {
+         tail[list] = frame;
+      }
+      head[list] = frame;
+      owner[frame] = list;
+      size[list]++;
+   }
+
+   public void remove(int frame) {
+      int list = owner[frame];
+      if (list == NONE) {
+         return;
+      }
+      if (prev[frame] != NONE) {
+         next[prev[frame]] = next[frame];
+      } else {
+         head[list] = next[frame];
+      }
+      if (next[frame] != NONE) {
+         prev[next[frame]] = prev[frame];
+      } else {
+         tail[list] = prev[frame];
+      }
+      owner[frame] = NONE;
+      size[list]--;
+   }
+
+   public int listOf(int frame) {
+      return owner[frame];
+   }
+
+   // the least recently used frame of list, or NONE
+   public int last(int list) {
+      return tail[list];
+   }
+
+   // the least recently used frame of list that segment lets go of, or NONE
+   public int lastEvictable(int list, Cache.Segment segment) {
+      int frame = tail[list];
+      while (frame != NONE && segment.isEvictable(frame) == false) {
+         frame = prev[frame];
+      }
+      return frame;
+   }
+
+   // the frame after frame toward the head, or NONE
+   public int previous(int frame) {
+      return prev[frame];
+   }
+
+   public int size(int list) {
+      return size[list];
+   }
+}
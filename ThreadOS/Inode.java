@@ -1,4 +1,6 @@
 // package ThreadOS;
+import java.nio.ByteBuffer;
+
 public class Inode {
    public final static int iNodeSize = 32; // fixed to 32 bytes
    public final static int directSize = 11; // # direct pointers
@@ -8,12 +10,33 @@ public class Inode {
    public final static int ErrorPrecBlockUnused = -2;
    public final static int ErrorIndirectNull = -3;
 
+   // An inode in the extent format maps its blocks as runs of (start
+   // block, # blocks) instead of one pointer per block: direct[0] holds
+   // the tag below, direct[1..10] the first five runs, and the indirect
+   // block up to 128 more. A run whose start is -1 is a hole. New files
+   // take this format while extentBased is set, and every inode keeps the
+   // format it was given until its blocks are deallocated.
+   public final static short ExtentTag = -2;
+   public final static int inlineExtents = (directSize - 1) / 2;
+   public static boolean extentBased = false;
+
+   // Past the indirect block, the double indirect block points to up to
+   // 256 more index blocks, which takes a file to 65,803 blocks: more
+   // than 16-bit block numbers can address, so no third level is needed.
+   // The double indirect pointer is saved in the slot the count used to
+   // have on disk, the count being kept in core only, and DoubleTag in
+   // the saved flag tells it from the count of an inode saved before.
+   public final static short DoubleTag = 0x4000;
+   public final static int perBlock = Disk.blockSize / 2; // # pointers in an index block
+
    public int length; // file size in bytes
    public short count; // # file-table entries pointing to this
    public short flag;  // 0 = unused, 1 = used(r), 2 = used(!r), 
    // 3=unused(wreg), 4=used(r,wreq), 5= used(!r,wreg)
    public short direct[] = new short[directSize]; // directo pointers
    public short indirect; // an indirect pointer
+   public short doubleIndirect; // a double indirect pointer
+   public volatile boolean dirty = false; // changed since last written back
 
       // Class constants for inode states
       public final static short UNUSED = 0; 
@@ -29,26 +52,34 @@ public class Inode {
       for (int i = 0; i < directSize; i++)
          direct[i] = -1;
       indirect = -1;
+      doubleIndirect = -1;
    }
 
    Inode(short iNumber) { // making inode from disk
-      int blkNumber = 1 + iNumber / 16; // inodes start from block#1
-      byte[] data = new byte[Disk.blockSize];
-      SysLib.rawread(blkNumber, data); // get the inode block
+      int blkNumber = blockOf(iNumber);
+      ByteBuffer data = FileSystem.pinBlock(blkNumber, false); // get the inode block
       int offset = (iNumber % 16) * iNodeSize; // locate the inode top
 
-      length = SysLib.bytes2int(data, offset); // retrieve all data members
+      length = data.getInt(offset); // retrieve all data members
       offset += 4; // from data
-      count = SysLib.bytes2short(data, offset);
+      short countSlot = data.getShort(offset);
       offset += 2;
-      flag = SysLib.bytes2short(data, offset);
+      flag = data.getShort(offset);
       offset += 2;
+      if ((flag & DoubleTag) != 0) {
+         flag &= ~DoubleTag;
+         doubleIndirect = countSlot;
+      } else { // saved before there was a double indirect pointer
+         count = countSlot;
+         doubleIndirect = -1;
+      }
       for (int i = 0; i < directSize; i++) {
-         direct[i] = SysLib.bytes2short(data, offset);
+         direct[i] = data.getShort(offset);
          offset += 2;
       }
-      indirect = SysLib.bytes2short(data, offset);
+      indirect = data.getShort(offset);
       offset += 2;
+      FileSystem.unpinBlock(blkNumber, data, false);
 
       /*
       System.out.println( "Inode[" + iNumber + "]: retrieved " +
@@ -60,31 +91,17 @@ public class Inode {
       */
    }
 
-   void toDisk(short iNumber) { // saving this inode to disk
-      byte[] iData = new byte[iNodeSize];
-      int offset = 0;
-
-      SysLib.int2bytes(length, iData, offset); // save all data members in
-      offset += 4; // iData
-      SysLib.short2bytes(count, iData, offset);
-      offset += 2;
-      SysLib.short2bytes(flag, iData, offset);
-      offset += 2;
-      for (int i = 0; i < directSize; i++) {
-         SysLib.short2bytes(direct[i], iData, offset);
-         offset += 2;
-      }
-      SysLib.short2bytes(indirect, iData, offset);
-      offset += 2;
-
-      int blkNumber = 1 + iNumber / 16; // inodes start from block#1
-      byte[] blkData = new byte[Disk.blockSize];
-      SysLib.rawread(blkNumber, blkData); // get the inode block
-      offset = (iNumber % 16) * iNodeSize; // locate the inode top
+   static int blockOf(short iNumber) { // the block holding this inode
+      return 1 + iNumber / 16; // inodes start from block#1
+   }
 
-      // reflect the inode data to the block, and then write back to the disk
-      System.arraycopy(iData, 0, blkData, offset, iNodeSize);
-      SysLib.rawwrite(blkNumber, blkData);
+   void toDisk(short iNumber) { // saving this inode to disk
+      int blkNumber = blockOf(iNumber);
+      ByteBuffer blkData = FileSystem.pinBlock(blkNumber, true); // get the inode block
+      toBlock(blkData, iNumber);
+      FileSystem.unpinBlock(blkNumber, blkData, true);
+      saveIndex();
+      dirty = false;
 
       /*
       System.out.println( "Inode[" + iNumber + "]: written back " +
@@ -96,27 +113,127 @@ public class Inode {
       */
    }
 
+   // reflects the inode data to its slot of the pinned inode block, so
+   // that several inodes of a block can be saved with one block write
+   void toBlock(ByteBuffer blkData, short iNumber) {
+      int offset = (iNumber % 16) * iNodeSize; // locate the inode top
+
+      blkData.putInt(offset, length); // save all data members
+      offset += 4;
+      blkData.putShort(offset, doubleIndirect); // the count is kept in core
+      offset += 2;
+      blkData.putShort(offset, (short) (flag | DoubleTag));
+      offset += 2;
+      for (int i = 0; i < directSize; i++) {
+         blkData.putShort(offset, direct[i]);
+         offset += 2;
+      }
+      blkData.putShort(offset, indirect);
+      offset += 2;
+   }
+
    int findIndexBlock() { // return the index block number
       return indirect;
    }
 
-   boolean registerIndexBlock(short indexBlockNumber) {
-      for (int i = 0; i < directSize; i++) // check if all direct ptrs
-         if (direct[i] == -1) // have a block number
-            return false;
+   boolean isExtentBased() {
+      return direct[0] == ExtentTag;
+   }
+
+   // the decoded index block, read in on first use and kept while the
+   // inode is in core; null until then or if there is none
+   private short index[] = null;
+   private boolean indexDirty = false; // index[] differs from the disk
+
+   // the double indirect block and the index blocks under it, decoded
+   // the same way as they are first used
+   private short doubleIndex[] = null;
+   private short leaves[][] = null; // leaves[i] is the block doubleIndex[i]
+   private boolean leafDirty[] = null;
+   private boolean doubleDirty = false;
+
+   private static short[] readIndexBlock(int blockNumber) {
+      ByteBuffer indexBlock = FileSystem.pinBlock(blockNumber, false); // pin the index block
+      short[] entries = new short[perBlock];
+      for (int i = 0; i < entries.length; i++)
+         entries[i] = indexBlock.getShort(i * 2);
+      FileSystem.unpinBlock(blockNumber, indexBlock, false);
+      return entries;
+   }
+
+   private static void writeIndexBlock(int blockNumber, short[] entries) {
+      ByteBuffer indexBlock = FileSystem.pinBlock(blockNumber, true, false);
+      for (int i = 0; i < entries.length; i++)
+         indexBlock.putShort(i * 2, entries[i]);
+      FileSystem.unpinBlock(blockNumber, indexBlock, true);
+   }
+
+   private static short[] emptyIndexBlock() {
+      short[] entries = new short[perBlock];
+      for (int i = 0; i < entries.length; i++)
+         entries[i] = -1;
+      return entries;
+   }
+
+   private short[] loadIndex() {
+      if (index == null && indirect >= 0)
+         index = readIndexBlock(indirect);
+      return index;
+   }
+
+   private short[] loadDouble() {
+      if (doubleIndex == null && doubleIndirect >= 0) {
+         doubleIndex = readIndexBlock(doubleIndirect);
+         leaves = new short[perBlock][];
+         leafDirty = new boolean[perBlock];
+      }
+      return doubleIndex;
+   }
+
+   // the index block under the double indirect one for leaf i, or null
+   private short[] loadLeaf(int i) {
+      short[] top = loadDouble();
+      if (top == null || top[i] < 0)
+         return null;
+      if (leaves[i] == null)
+         leaves[i] = readIndexBlock(top[i]);
+      return leaves[i];
+   }
+
+   // writes the index blocks back that were modified; called whenever the
+   // inode itself is written back
+   synchronized void saveIndex() {
+      if (indexDirty && indirect >= 0)
+         writeIndexBlock(indirect, index);
+      indexDirty = false;
+      if (doubleIndex == null)
+         return;
+      if (doubleDirty)
+         writeIndexBlock(doubleIndirect, doubleIndex);
+      doubleDirty = false;
+      for (int i = 0; i < perBlock; i++) {
+         if (leafDirty[i])
+            writeIndexBlock(doubleIndex[i], leaves[i]);
+         leafDirty[i] = false;
+      }
+   }
+
+   synchronized boolean registerIndexBlock(short indexBlockNumber) {
       if (indirect != -1) // check if the indirect has
          return false; // not yet had a block number
       indirect = indexBlockNumber; // register it
-      byte[] indexBlock = new byte[Disk.blockSize];
-      for (int i = 0; i < Disk.blockSize / 2; i++)
-         SysLib.short2bytes((short) - 1, indexBlock, i * 2);
-      SysLib.rawwrite(indexBlockNumber, indexBlock);
+      index = emptyIndexBlock(); // a fresh block, nothing to read
+      indexDirty = true;
+      firstBlock = null;
+      dirty = true;
 
       return true;
    }
 
-   int findTargetBlock(int offset) { // find the block# including offset
+   synchronized int findTargetBlock(int offset) { // find the block# including offset
       int directNumber = offset / Disk.blockSize;
+      if (isExtentBased())
+         return mapExtent(directNumber);
       // System.out.println("directNumber: " + directNumber);
       // System.out.println("offset: " + offset);
 
@@ -125,55 +242,541 @@ public class Inode {
          return direct[directNumber];
       }
       else { // target is in indiret pointer
+         int indirectNumber = directNumber - directSize;
+         if (indirectNumber >= perBlock) // past it, in the double indirect
+            return mapDouble(indirectNumber - perBlock);
          if (indirect < 0) // indirect is null
             return -1;
-         else {
-            byte[] indexBlock = new byte[Disk.blockSize];
-            SysLib.rawread(indirect, indexBlock); // read the index block
-            int indirectNumber = directNumber - directSize;
-            return SysLib.bytes2short(indexBlock, indirectNumber * 2);
+         else
+            return loadIndex()[indirectNumber];
+      }
+   }
+
+   // find the block#s of count consecutive blocks starting at the one
+   // including offset
+   synchronized int[] findTargetBlocks(int offset, int count) {
+      int[] blocks = new int[count];
+      int directNumber = offset / Disk.blockSize;
+      if (isExtentBased()) {
+         mapExtents(directNumber, blocks);
+         return blocks;
+      }
+      for (int i = 0; i < count; i++, directNumber++) {
+         if (directNumber < directSize) { // target is in direct pointers
+            blocks[i] = direct[directNumber];
+         } else if (directNumber - directSize >= perBlock) { // double indirect
+            blocks[i] = mapDouble(directNumber - directSize - perBlock);
+         } else if (indirect < 0) { // indirect is null
+            blocks[i] = -1;
+         } else {
+            blocks[i] = loadIndex()[directNumber - directSize];
          }
       }
+      return blocks;
+   }
+
+   // whether no block of the file is mapped yet, in either format, so
+   // that its first registration may still pick the format
+   private boolean isEmpty() {
+      for (int i = 0; i < directSize; i++)
+         if (direct[i] != -1)
+            return false;
+      return indirect < 0 && doubleIndirect < 0;
    }
 
-   int registerTargetBlock(int offset, short targetBlockNumber) {
+   synchronized int registerTargetBlock(int offset, short targetBlockNumber) {
       int directNumber = offset / Disk.blockSize;
+      if (extentBased && isEmpty()) { // a new file, whatever the offset
+         direct[0] = ExtentTag; // start it in the extent format
+         firstBlock = null;
+      }
+      if (isExtentBased())
+         return registerExtentBlock(directNumber, targetBlockNumber);
       if (directNumber < directSize) { // target is in direct pointers
          if (direct[directNumber] >= 0) // already registered!
             return ErrorBlockRegistered;
-         if (directNumber > 0 && direct[directNumber - 1] == -1)
-            return ErrorPrecBlockUnused; // preceding block unused!
+         // a preceding block may be unused: the file has a hole there
          direct[directNumber] = targetBlockNumber; // register it in success
          return NoError;
+      } else if (directNumber - directSize >= perBlock) { // double indirect
+         return registerDoubleBlock(directNumber - directSize - perBlock, targetBlockNumber);
       } else { // target is in indiret pointer
          if (indirect < 0) // indirect is null
             return ErrorIndirectNull;
          else {
-            byte[] indexBlock = new byte[Disk.blockSize];
-            SysLib.rawread(indirect, indexBlock); // read the index block
+            short[] index = loadIndex();
             int indirectNumber = directNumber - directSize;
-            if (SysLib.bytes2short(indexBlock, indirectNumber * 2) > 0) {
+            if (index[indirectNumber] > 0) {
                SysLib.cerr("indexBlock, indirectNumber = " +
                   indirectNumber + " contents = " +
-                  SysLib.bytes2short(indexBlock,
-                     indirectNumber * 2) + "\n");
+                  index[indirectNumber] + "\n");
                return ErrorBlockRegistered;
             }
-            SysLib.short2bytes(targetBlockNumber,
-               indexBlock, indirectNumber * 2);
-            SysLib.rawwrite(indirect, indexBlock); //write back the index
+            // update the cached entry; saved with the inode
+            index[indirectNumber] = targetBlockNumber;
+            indexDirty = true;
+            dirty = true;
             return NoError;
          }
       }
    }
 
-   byte[] unregisterIndexBlock() {
+   // Registers a fresh index block at the first level missing on the way
+   // to the block including offset: the indirect block, the double
+   // indirect block, or the index block under it. Called as many times
+   // as registerTargetBlock answers ErrorIndirectNull.
+   synchronized boolean registerIndexBlock(int offset, short indexBlockNumber) {
+      int indirectNumber = offset / Disk.blockSize - directSize;
+      if (isExtentBased() || indirectNumber < perBlock)
+         return registerIndexBlock(indexBlockNumber);
+      int leaf = (indirectNumber - perBlock) / perBlock;
+      if (leaf >= perBlock)
+         return false; // past the largest file
+      if (doubleIndirect < 0) {
+         doubleIndirect = indexBlockNumber;
+         doubleIndex = emptyIndexBlock();
+         leaves = new short[perBlock][];
+         leafDirty = new boolean[perBlock];
+         doubleDirty = true;
+      } else if (loadDouble()[leaf] < 0) {
+         doubleIndex[leaf] = indexBlockNumber;
+         leaves[leaf] = emptyIndexBlock();
+         leafDirty[leaf] = true;
+         doubleDirty = true;
+      } else
+         return false; // nothing is missing
+      dirty = true;
+      return true;
+   }
+
+   // block d past the indirect block, or -1
+   private int mapDouble(int d) {
+      if (d >= perBlock * perBlock)
+         return -1;
+      short[] leaf = loadLeaf(d / perBlock);
+      return (leaf == null) ? -1 : leaf[d % perBlock];
+   }
+
+   private int registerDoubleBlock(int d, short targetBlockNumber) {
+      if (d >= perBlock * perBlock)
+         return ErrorBlockRegistered; // past the largest file
+      short[] leaf = (doubleIndirect < 0) ? null : loadLeaf(d / perBlock);
+      if (leaf == null)
+         return ErrorIndirectNull;
+      if (leaf[d % perBlock] >= 0)
+         return ErrorBlockRegistered;
+      leaf[d % perBlock] = targetBlockNumber;
+      leafDirty[d / perBlock] = true;
+      dirty = true;
+      return NoError;
+   }
+
+   // detaches the block including offset, leaving a hole there, and
+   // returns it, or -1 if there is none; undoes registerTargetBlock for a
+   // block the caller could not put to use
+   synchronized int unregisterTargetBlock(int offset) {
+      int directNumber = offset / Disk.blockSize;
+      if (isExtentBased())
+         return unregisterExtentBlock(directNumber);
+      int block = findTargetBlock(offset);
+      if (block < 0)
+         return -1;
+      if (directNumber < directSize) { // target is in direct pointers
+         direct[directNumber] = -1;
+      } else if (directNumber - directSize >= perBlock) { // double indirect
+         int d = directNumber - directSize - perBlock;
+         loadLeaf(d / perBlock)[d % perBlock] = -1;
+         leafDirty[d / perBlock] = true;
+      } else { // target is in indirect pointer
+         loadIndex()[directNumber - directSize] = -1;
+         indexDirty = true;
+      }
+      dirty = true;
+      return block;
+   }
+
+   // detaches the index blocks left mapping no block, once the blocks
+   // under them were unregistered, and returns them
+   synchronized int[] unregisterEmptyIndexBlocks() {
+      java.util.ArrayList<Integer> blocks = new java.util.ArrayList<Integer>();
+      if (doubleIndirect >= 0) {
+         short[] top = loadDouble();
+         boolean used = false;
+         for (int i = 0; i < perBlock; i++) {
+            if (top[i] < 0)
+               continue;
+            if (isUnused(loadLeaf(i))) {
+               blocks.add((int) top[i]);
+               top[i] = -1;
+               leaves[i] = null;
+               leafDirty[i] = false;
+               doubleDirty = true;
+            } else
+               used = true;
+         }
+         if (used == false) {
+            blocks.add((int) doubleIndirect);
+            doubleIndirect = -1;
+            doubleIndex = null;
+            leaves = null;
+            leafDirty = null;
+            doubleDirty = false;
+         }
+      }
+      if (indirect >= 0 && isUnused(loadIndex())) {
+         blocks.add((int) indirect);
+         indirect = -1;
+         index = null;
+         indexDirty = false;
+         firstBlock = null;
+      }
+      int[] result = new int[blocks.size()];
+      for (int i = 0; i < result.length; i++)
+         result[i] = blocks.get(i);
+      if (result.length > 0)
+         dirty = true;
+      return result;
+   }
+
+   // whether no entry of an index block is in use
+   private static boolean isUnused(short[] entries) {
+      for (int i = 0; i < entries.length; i++)
+         if (entries[i] >= 0)
+            return false;
+      return true;
+   }
+
+   // detaches the double indirect block and returns every block under
+   // it: the data blocks, the index blocks, and then itself
+   synchronized int[] unregisterDoubleIndirect() {
+      if (doubleIndirect < 0)
+         return new int[0];
+      int total = 1;
+      for (int i = 0; i < perBlock; i++) {
+         short[] leaf = loadLeaf(i);
+         for (int j = 0; leaf != null && j < perBlock; j++)
+            if (leaf[j] >= 0)
+               total++;
+         if (leaf != null)
+            total++;
+      }
+      int[] blocks = new int[total];
+      int n = 0;
+      for (int i = 0; i < perBlock; i++) {
+         short[] leaf = leaves[i];
+         for (int j = 0; leaf != null && j < perBlock; j++)
+            if (leaf[j] >= 0)
+               blocks[n++] = leaf[j];
+         if (leaf != null)
+            blocks[n++] = doubleIndex[i];
+      }
+      blocks[n++] = doubleIndirect;
+      doubleIndirect = -1;
+      doubleIndex = null;
+      leaves = null;
+      leafDirty = null;
+      doubleDirty = false;
+      dirty = true;
+      return blocks;
+   }
+
+   // detaches the index block and returns its entries, so that the caller
+   // can free the blocks they point to and then the index block itself
+   synchronized short[] unregisterIndexBlock() {
       if (indirect >= 0) {
-         byte[] indexBlock = new byte[Disk.blockSize];
-         SysLib.rawread(indirect, indexBlock);
+         short[] entries = loadIndex();
+         index = null;
+         indexDirty = false;
          indirect = -1;
-         return indexBlock;
+         dirty = true;
+         return entries;
       } else
          return null;
    }
-}
\ No newline at end of file
+
+   /* EXTENTS */
+   // runs are numbered in file order; run k lives in direct[] for the
+   // first inlineExtents of them and in the indirect block after that.
+   // firstBlock[k] is the file block run k starts at, rebuilt whenever
+   // the runs change, so that a lookup is a binary search over it.
+   private int firstBlock[] = null;
+   private int extents = 0; // # runs in use, valid while firstBlock is
+
+   private int extentStart(int k) {
+      return (k < inlineExtents) ? direct[1 + k * 2] : loadIndex()[(k - inlineExtents) * 2];
+   }
+
+   private int extentLength(int k) {
+      if (k < inlineExtents)
+         return direct[2 + k * 2];
+      if (indirect < 0 || k - inlineExtents >= Disk.blockSize / 4)
+         return -1;
+      return loadIndex()[(k - inlineExtents) * 2 + 1];
+   }
+
+   private void setExtent(int k, int start, int blocks) {
+      if (k < inlineExtents) {
+         direct[1 + k * 2] = (short) start;
+         direct[2 + k * 2] = (short) blocks;
+      } else {
+         short[] index = loadIndex();
+         index[(k - inlineExtents) * 2] = (short) start;
+         index[(k - inlineExtents) * 2 + 1] = (short) blocks;
+         indexDirty = true;
+      }
+      firstBlock = null;
+      dirty = true;
+   }
+
+   // counts the runs in use and where each starts in the file
+   private void loadExtents() {
+      if (firstBlock != null)
+         return;
+      int maxExtents = inlineExtents + Disk.blockSize / 4;
+      firstBlock = new int[maxExtents + 1];
+      extents = 0;
+      int next = 0;
+      while (extents < maxExtents && extentLength(extents) > 0) {
+         firstBlock[extents] = next;
+         next += extentLength(extents++);
+      }
+      firstBlock[extents] = next; // the end of the last run
+   }
+
+   // the run including file block n, or -1 if n is past the last one
+   private int findExtent(int n) {
+      loadExtents();
+      if (n < 0 || n >= firstBlock[extents])
+         return -1;
+      int low = 0, high = extents - 1;
+      while (low < high) {
+         int mid = (low + high + 1) / 2;
+         if (firstBlock[mid] <= n)
+            low = mid;
+         else
+            high = mid - 1;
+      }
+      return low;
+   }
+
+   private int mapExtent(int n) {
+      int k = findExtent(n);
+      if (k == -1 || extentStart(k) < 0)
+         return -1;
+      return extentStart(k) + n - firstBlock[k];
+   }
+
+   // maps blocks.length consecutive file blocks from block n, searching
+   // only for the first one and walking the runs from there
+   private void mapExtents(int n, int blocks[]) {
+      int k = findExtent(n);
+      for (int i = 0; i < blocks.length; i++, n++) {
+         while (k != -1 && k < extents && n >= firstBlock[k + 1])
+            k++;
+         if (k == -1 || k >= extents || extentStart(k) < 0)
+            blocks[i] = -1;
+         else
+            blocks[i] = extentStart(k) + n - firstBlock[k];
+      }
+   }
+
+   // registers block b as file block n, growing the run before it when b
+   // comes right after that run on disk. A block past the end of the file
+   // leaves a hole run up to it, and one inside a hole splits the hole.
+   private int registerExtentBlock(int n, short b) {
+      loadExtents();
+      int end = firstBlock[extents];
+      int[] start = new int[extents + 6]; // room for the runs added below
+      int[] blocks = new int[extents + 6];
+      for (int k = 0; k < extents; k++) {
+         start[k] = extentStart(k);
+         blocks[k] = extentLength(k);
+      }
+      int count = extents;
+      int k; // the run b goes to
+      if (n >= end) { // append, after holes up to n
+         for (int gap = n - end; gap > 0; gap -= Short.MAX_VALUE) {
+            start[count] = -1;
+            blocks[count++] = Math.min(gap, Short.MAX_VALUE);
+         }
+         k = count++;
+      } else {
+         k = findExtent(n);
+         if (start[k] >= 0)
+            return ErrorBlockRegistered;
+         // split the hole into the part before n, b and the part after
+         int before = n - firstBlock[k];
+         int after = blocks[k] - before - 1;
+         int added = (before > 0 ? 1 : 0) + (after > 0 ? 1 : 0);
+         System.arraycopy(start, k + 1, start, k + 1 + added, count - k - 1);
+         System.arraycopy(blocks, k + 1, blocks, k + 1 + added, count - k - 1);
+         count += added;
+         if (before > 0) {
+            blocks[k++] = before;
+         }
+         if (after > 0) {
+            start[k + 1] = -1;
+            blocks[k + 1] = after;
+         }
+      }
+      start[k] = b;
+      blocks[k] = 1;
+
+      // merge b into the run before it when they are contiguous on disk
+      if (k > 0 && start[k - 1] >= 0 && start[k - 1] + blocks[k - 1] == b
+            && blocks[k - 1] < Short.MAX_VALUE) {
+         blocks[k - 1]++;
+         System.arraycopy(start, k + 1, start, k, count - k - 1);
+         System.arraycopy(blocks, k + 1, blocks, k, count - k - 1);
+         count--;
+      }
+
+      if (count > inlineExtents && indirect < 0)
+         return ErrorIndirectNull;
+      if (count > firstBlock.length - 1)
+         return ErrorBlockRegistered; // no room for more runs
+      int oldExtents = extents;
+      for (int j = 0; j < count; j++)
+         if (j >= oldExtents || extentStart(j) != start[j] || extentLength(j) != blocks[j])
+            setExtent(j, start[j], blocks[j]);
+      for (int j = count; j < oldExtents; j++) // a hole filled up and merged
+         setExtent(j, -1, -1);
+      return NoError;
+   }
+
+   // turns file block n into a hole, merged with the holes next to it,
+   // drops the holes left at the end of the file, and returns the block n
+   // was, or -1 if it was none or the runs would not fit
+   private int unregisterExtentBlock(int n) {
+      int k = findExtent(n);
+      if (k == -1 || extentStart(k) < 0)
+         return -1;
+      int b = extentStart(k) + n - firstBlock[k];
+      int before = n - firstBlock[k];
+      int after = extentLength(k) - before - 1;
+      int[] start = new int[extents + 2]; // room for the split below
+      int[] blocks = new int[extents + 2];
+      int count = 0;
+      for (int j = 0; j < extents; j++) {
+         if (j != k) {
+            count = addRun(start, blocks, count, extentStart(j), extentLength(j));
+            continue;
+         }
+         if (before > 0)
+            count = addRun(start, blocks, count, extentStart(k), before);
+         count = addRun(start, blocks, count, -1, 1);
+         if (after > 0)
+            count = addRun(start, blocks, count, b + 1, after);
+      }
+      while (count > 0 && start[count - 1] < 0)
+         count--;
+
+      if ((count > inlineExtents && indirect < 0) || count > firstBlock.length - 1)
+         return -1;
+      int oldExtents = extents;
+      for (int j = 0; j < count; j++)
+         if (j >= oldExtents || extentStart(j) != start[j] || extentLength(j) != blocks[j])
+            setExtent(j, start[j], blocks[j]);
+      for (int j = count; j < oldExtents; j++)
+         setExtent(j, -1, -1);
+      return b;
+   }
+
+   // appends a run, merging a hole into the hole before it, and returns
+   // the new # runs
+   private static int addRun(int[] start, int[] blocks, int count, int s, int length) {
+      if (s < 0 && count > 0 && start[count - 1] < 0
+            && blocks[count - 1] + length <= Short.MAX_VALUE) {
+         blocks[count - 1] += length;
+         return count;
+      }
+      start[count] = s;
+      blocks[count] = length;
+      return count + 1;
+   }
+
+   // the block right after the last one of the file, where it best grows
+   // next, or -1 if it has none
+   synchronized int nextContiguousBlock() {
+      if (isExtentBased()) {
+         loadExtents();
+         if (extents > 0 && extentStart(extents - 1) >= 0)
+            return extentStart(extents - 1) + extentLength(extents - 1);
+      }
+      return -1;
+   }
+
+   // detaches every run and the indirect block and returns all of their
+   // blocks, leaving an empty inode that takes a format on its next block
+   synchronized int[] unregisterExtents() {
+      loadExtents();
+      int total = (indirect >= 0) ? 1 : 0;
+      for (int k = 0; k < extents; k++)
+         if (extentStart(k) >= 0)
+            total += extentLength(k);
+      int[] blocks = new int[total];
+      int i = 0;
+      for (int k = 0; k < extents; k++)
+         for (int j = 0; extentStart(k) >= 0 && j < extentLength(k); j++)
+            blocks[i++] = extentStart(k) + j;
+      if (indirect >= 0)
+         blocks[i++] = indirect;
+      for (int k = 0; k < directSize; k++)
+         direct[k] = -1;
+      indirect = -1;
+      index = null;
+      indexDirty = false;
+      firstBlock = null;
+      dirty = true;
+      return blocks;
+   }
+
+   // returns every block the inode maps, its data blocks and the index
+   // blocks that lead to them, leaving the inode as it is, or null if it
+   // points past the end of a disk of totalBlocks blocks
+   synchronized int[] mappedBlocks(int totalBlocks) {
+      java.util.ArrayList<Integer> blocks = new java.util.ArrayList<Integer>();
+      if (indirect >= totalBlocks || doubleIndirect >= totalBlocks)
+         return null;
+      if (indirect >= 0)
+         blocks.add((int) indirect);
+      if (isExtentBased()) {
+         loadExtents();
+         for (int k = 0; k < extents; k++) {
+            if (extentStart(k) + extentLength(k) > totalBlocks)
+               return null;
+            for (int j = 0; extentStart(k) >= 0 && j < extentLength(k); j++)
+               blocks.add(extentStart(k) + j);
+         }
+      } else {
+         for (int i = 0; i < directSize; i++)
+            if (direct[i] >= 0)
+               blocks.add((int) direct[i]);
+         short[] entries = loadIndex();
+         for (int i = 0; entries != null && i < perBlock; i++)
+            if (entries[i] >= 0)
+               blocks.add((int) entries[i]);
+         if (doubleIndirect >= 0) {
+            blocks.add((int) doubleIndirect);
+            short[] top = loadDouble();
+            for (int i = 0; i < perBlock; i++) {
+               if (top[i] >= totalBlocks)
+                  return null;
+               short[] leaf = loadLeaf(i);
+               if (leaf != null)
+                  blocks.add((int) top[i]);
+               for (int j = 0; leaf != null && j < perBlock; j++)
+                  if (leaf[j] >= 0)
+                     blocks.add((int) leaf[j]);
+            }
+         }
+      }
+      int[] result = new int[blocks.size()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = blocks.get(i);
+         if (result[i] >= totalBlocks)
+            return null;
+      }
+      return result;
+   }
+}
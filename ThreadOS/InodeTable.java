@@ -0,0 +1,164 @@
+/*
+ * @file InodeTable.java
+ * @brief CSS 430B O.S.
+ * The in-core inode table. Every open of a file goes through iget, which
+ * hands out the one Inode object kept for its iNumber, reading it from
+ * disk only if it is not in memory yet, so that all file table entries
+ * of a file see the same length and block pointers. Inode.count is the
+ * number of references taken by iget and not yet given back by iput.
+ * Inodes nobody references stay cached for the next open, and the least
+ * recently used of them are dropped once there are too many.
+ *
+ * Changing an inode only marks it dirty. Dirty inodes are written back
+ * by inode block, all those sharing a block with one block write, when
+ * a file is closed, at sync, and every interval by the cache flusher.
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class InodeTable {
+   private final static int capacity = 64; // inodes kept in memory if unreferenced
+
+   // iNumber -> inode, in least recently used first order
+   private LinkedHashMap < Short, Inode > table;
+
+   public InodeTable() {
+      table = new LinkedHashMap < Short, Inode > (16, 0.75f, true);
+   }
+
+   /* IGET */
+   // returns the in-core inode of iNumber, loading it from disk if needed,
+   // and takes a reference to it
+   public synchronized Inode iget(short iNumber) {
+      Inode inode = table.get(iNumber);
+      if (inode == null) {
+         inode = new Inode(iNumber);
+         // the count on disk was left by an earlier boot; nobody in
+         // memory references the inode yet
+         inode.count = 0;
+         table.put(iNumber, inode);
+      }
+      inode.count++;
+      trim();
+      return inode;
+   }
+
+   /* IPUT */
+   // gives back a reference taken by iget
+   public synchronized void iput(short iNumber) {
+      Inode inode = table.get(iNumber);
+      if (inode != null && inode.count > 0) {
+         inode.count--;
+      }
+      trim();
+   }
+
+   /* CLEAR */
+   // forgets every inode without writing any back, for format
+   public synchronized void clear() {
+      table.clear();
+   }
+
+   /* WRITEBACK */
+   // writes back the dirty inodes in the block holding iNumber
+   public synchronized void writeBack(short iNumber) {
+      int blkNumber = Inode.blockOf(iNumber);
+      TreeMap < Short, Inode > dirty = new TreeMap < Short, Inode > ();
+      for (Map.Entry < Short, Inode > e : table.entrySet()) {
+         if (e.getValue().dirty && Inode.blockOf(e.getKey()) == blkNumber) {
+            dirty.put(e.getKey(), e.getValue());
+         }
+      }
+      writeBack(dirty);
+   }
+
+   /* SYNC */
+   // writes back every dirty inode, returning the # inode blocks written
+   public synchronized int sync() {
+      TreeMap < Short, Inode > dirty = new TreeMap < Short, Inode > ();
+      for (Map.Entry < Short, Inode > e : table.entrySet()) {
+         if (e.getValue().dirty) {
+            dirty.put(e.getKey(), e.getValue());
+         }
+      }
+      return writeBack(dirty);
+   }
+
+   // writes back the given inodes, sorted by iNumber, so that those of a
+   // block come in a row and go out with one block write
+   private int writeBack(TreeMap < Short, Inode > dirty) {
+      ArrayList < Short > run = new ArrayList < Short > ();
+      int blocks = 0;
+      for (short iNumber : dirty.keySet()) {
+         if (run.isEmpty() == false && Inode.blockOf(run.get(0)) != Inode.blockOf(iNumber)) {
+            blocks += writeBlock(run, dirty);
+            run.clear();
+         }
+         run.add(iNumber);
+      }
+      if (run.isEmpty() == false) {
+         blocks += writeBlock(run, dirty);
+      }
+      return blocks;
+   }
+
+   // saves inodes of one block into it with a single pin. A writer
+   // updates an inode holding its lock and pins blocks under it, so each
+   // inode, with its index blocks, is saved and copied out under its own
+   // lock first, and only then is the inode block pinned and the copies
+   // put in, no inode lock held: taking the pin before an inode lock
+   // could deadlock with a writer waiting for a cache resize that waits
+   // for this pin. An inode written to after it was copied is dirty
+   // again by then.
+   private int writeBlock(ArrayList < Short > run, TreeMap < Short, Inode > dirty) {
+      ByteBuffer image = ByteBuffer.allocate(Disk.blockSize);
+      for (short iNumber : run) {
+         Inode inode = dirty.get(iNumber);
+         synchronized (inode) {
+            inode.dirty = false;
+            inode.saveIndex();
+            inode.toBlock(image, iNumber);
+         }
+      }
+      int blkNumber = Inode.blockOf(run.get(0));
+      ByteBuffer blkData = FileSystem.pinBlock(blkNumber, true);
+      if (blkData == null) { // still to be written back
+         for (short iNumber : run) {
+            dirty.get(iNumber).dirty = true;
+         }
+         return 0;
+      }
+      for (short iNumber : run) {
+         int offset = (iNumber % 16) * Inode.iNodeSize;
+         for (int i = offset; i < offset + Inode.iNodeSize; i++) {
+            blkData.put(i, image.get(i));
+         }
+      }
+      FileSystem.unpinBlock(blkNumber, blkData, true);
+      return 1;
+   }
+
+   // drops the least recently used unreferenced inodes until the table
+   // is back to its capacity, writing back those that are dirty first.
+   // Referenced inodes are never dropped, so the table outgrows its
+   // capacity while more files than that are open.
+   private void trim() {
+      Iterator < Map.Entry < Short, Inode > > i = table.entrySet().iterator();
+      while (table.size() > capacity && i.hasNext()) {
+         Map.Entry < Short, Inode > e = i.next();
+         Inode inode = e.getValue();
+         if (inode.count == 0) {
+            if (inode.dirty) {
+               synchronized (inode) {
+                  inode.toDisk(e.getKey());
+               }
+            }
+            i.remove();
+         }
+      }
+   }
+}
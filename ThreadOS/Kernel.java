@@ -9,6 +9,7 @@
 import java.util.*;
 import java.lang.reflect.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class Kernel {
    // Interrupt requests
@@ -22,8 +23,8 @@ public class Kernel {
    public final static int WAIT = 2; // SysLib.join( )
    public final static int EXIT = 3; // SysLib.exit( )
    public final static int SLEEP = 4; // SysLib.sleep(int milliseconds)
-   public final static int RAWREAD = 5; // SysLib.rawread(int blk, byte b[])
-   public final static int RAWWRITE = 6; // SysLib.rawwrite(int blk, byte b[])
+   public final static int RAWREAD = 5; // SysLib.rawread(int blk, byte b[] or ByteBuffer b)
+   public final static int RAWWRITE = 6; // SysLib.rawwrite(int blk, byte b[] or ByteBuffer b)
    public final static int SYNC = 7; // SysLib.sync( )
    public final static int READ = 8; // SysLib.cin( )
    public final static int WRITE = 9; // SysLib.cout( ) and SysLib.cerr( )
@@ -42,6 +43,28 @@ public class Kernel {
    public final static int FORMAT = 18; // SysLib.format( int files )
    public final static int DELETE = 19; // SysLib.delete( String fileName )
 
+   // Disk scheduling
+   public final static int DISKSCHED = 20; // SysLib.diskSched( int policy )
+   public final static int DISKSTAT = 21; // SysLib.diskStat( int policy, long stats[] )
+
+   // Vectored disk I/O
+   public final static int RAWREADV = 22; // SysLib.rawreadv(int blks[], byte b[] or ByteBuffer b[])
+   public final static int RAWWRITEV = 23; // SysLib.rawwritev(int blks[], byte b[] or ByteBuffer b[])
+
+   // Background cache write-back
+   public final static int FLUSHCTL = 24; // SysLib.flushCtl( int param, int value )
+   public final static int FLUSHSTAT = 25; // SysLib.flushStat( long stats[] )
+
+   // Cache sizing
+   public final static int CRESIZE = 26; // SysLib.cresize( int blocks )
+   public final static int CSTAT = 27; // SysLib.cstat( long stats[] )
+
+   // File preallocation
+   public final static int FALLOCATE = 28; // SysLib.fallocate( int fd, int offset, int length )
+
+   // Disk write-back counters
+   public final static int SYNCSTAT = 29; // SysLib.syncStat( long stats[] )
+
    // Predefined file descriptors
    public final static int STDIN = 0;
    public final static int STDOUT = 1;
@@ -53,8 +76,15 @@ public class Kernel {
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static Volume volume; // one or more striped disks
    private static Cache cache;
+   private static Flusher flusher; // null unless started
+   private static Prefetcher prefetcher; // null unless started
+
+   // the buffer cache, for kernel code that pins blocks in place
+   static Cache getCache() {
+      return cache;
+   }
 
    // Synchronized Queues
    private static SyncQueue waitQueue; // for threads to wait for their child
@@ -64,7 +94,8 @@ public class Kernel {
    private static FileSystem fs;
 
    private final static int COND_DISK_REQ = 1; // wait condition
-   private final static int COND_DISK_FIN = 2; // wait condition
+   private final static int COND_DISK_FIN = 2; // wait condition, + request slot
+   private final static int COND_PER_DISK = 1 + Disk.maxRequests; // conditions per disk
 
    // Standard input
    private static BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
@@ -80,19 +111,69 @@ public class Kernel {
                   scheduler = new Scheduler();
                   scheduler.start();
 
-                  // instantiate and start a disk
-                  disk = new Disk(1000);
-                  disk.start();
+                  // instantiate a volume of one or more striped disks,
+                  // mapping DISK into memory when started with
+                  // -DthreadOS.diskMapped=true
+                  volume = new Volume(1000, Integer.getInteger("threadOS.disks", 1),
+                        Integer.getInteger("threadOS.stripeSize", 8),
+                        Boolean.getBoolean("threadOS.diskMapped"));
+                  int policy = Disk.policyOf(System.getProperty("threadOS.diskPolicy", "look"));
+                  for (int i = 0; policy >= 0 && i < volume.getDevices(); i++) {
+                     volume.getDisk(i).setPolicy(policy);
+                  }
 
-                  // instantiate a cache memory
-                  cache = new Cache(disk.blockSize, 10);
+                  // instantiate the I/O queue before the disks start: each
+                  // disk has a request acceptance condition followed by one
+                  // condition per request slot
+                  ioQueue = new SyncQueue(COND_DISK_REQ + volume.getDevices() * COND_PER_DISK);
+                  volume.start();
+
+                  // instantiate a cache memory of -DthreadOS.cacheBlocks
+                  // frames, replacing pages with the policy given by
+                  // -DthreadOS.cachePolicy (second-chance, lru, 2q or arc)
+                  int cacheBlocks = Math.max(1, Integer.getInteger("threadOS.cacheBlocks", 10));
+                  cache = new Cache(Disk.blockSize, cacheBlocks,
+                        System.getProperty("threadOS.cachePolicy", Cache.policyNames[0]));
+
+                  // with -DthreadOS.cacheAdaptive=true, let the cache grow
+                  // from there up to -DthreadOS.cacheMaxBlocks frames
+                  if (Boolean.getBoolean("threadOS.cacheAdaptive")) {
+                     new CacheSizer(cache, cacheBlocks,
+                           Integer.getInteger("threadOS.cacheMaxBlocks", 16384)).start();
+                  }
+
+                  // instantiate and start the cache flusher, unless
+                  // started with -DthreadOS.flusher=false
+                  flusher = null;
+                  if (Boolean.parseBoolean(System.getProperty("threadOS.flusher", "true"))) {
+                     flusher = new Flusher(cache);
+                     cache.setFlusher(flusher);
+                     flusher.start();
+                  }
 
                   // instantiate synchronized queues
-                  ioQueue = new SyncQueue();
                   waitQueue = new SyncQueue(scheduler.getMaxThreads());
                   
-                  // instantiate a file system
-                  fs = new FileSystem(1000);
+                  // instantiate a file system, whose blocks go through the
+                  // cache when started with -DthreadOS.fsCached=true, and
+                  // then are read ahead unless -DthreadOS.readAhead=false
+                  boolean fsCached = Boolean.getBoolean("threadOS.fsCached");
+                  prefetcher = null;
+                  if (fsCached && Boolean.parseBoolean(System.getProperty("threadOS.readAhead", "true"))) {
+                     prefetcher = new Prefetcher(cache);
+                     prefetcher.start();
+                  }
+                  // new files map their blocks as extents when started
+                  // with -DthreadOS.extents=true
+                  Inode.extentBased = Boolean.getBoolean("threadOS.extents");
+                  // new blocks go to the free block closest to the file's
+                  // others unless started with -DthreadOS.allocator=nextfit
+                  SuperBlock.locality = !"nextfit".equalsIgnoreCase(
+                        System.getProperty("threadOS.allocator", "locality"));
+                  fs = new FileSystem(1000, fsCached, prefetcher);
+                  if (flusher != null) {
+                     flusher.setInodeTable(fs.getInodeTable());
+                  }
 
                   return OK;
                case EXEC:
@@ -114,22 +195,32 @@ public class Kernel {
                   scheduler.sleepThread(param); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while (disk.read(param, (byte[]) args) == false)
-                     ; // busy wait
-                  while (disk.testAndResetReady() == false)
-                     ; // busy wait
-                  return OK;
+                  return volumeIO(false, new int[] { param }, pagesOf(args, 1));
                case RAWWRITE: // write a block of data to disk
-                  while (disk.write(param, (byte[]) args) == false)
-                     ; // busy wait
-                  while (disk.testAndResetReady() == false)
-                     ; // busy wait
-                  return OK;
-               case SYNC: // synchronize disk data to a real file
-                  while (disk.sync() == false)
-                     ; // busy wait
-                  while (disk.testAndResetReady() == false)
-                     ; // busy wait
+                  return volumeIO(true, new int[] { param }, pagesOf(args, 1));
+               case RAWREADV: // read several blocks of data from disk at once
+                  Object[] vector = (Object[]) args;
+                  int[] vectorBlocks = (int[]) vector[0];
+                  return volumeIO(false, vectorBlocks, pagesOf(vector[1], vectorBlocks.length));
+               case RAWWRITEV: // write several blocks of data to disk at once
+                  vector = (Object[]) args;
+                  vectorBlocks = (int[]) vector[0];
+                  return volumeIO(true, vectorBlocks, pagesOf(vector[1], vectorBlocks.length));
+               case SYNC: // synchronize disk data to real files
+                  if (fs != null) {
+                     fs.sync(); // write back the directory and superblock
+                     if (fs.isCached()) {
+                        cache.writeBackAll(); // and every dirty cached block
+                     }
+                  }
+                  int[] requests = new int[volume.getDevices()];
+                  for (int i = 0; i < requests.length; i++) {
+                     while ((requests[i] = volume.getDisk(i).sync()) == Disk.BUSY)
+                        ioQueue.enqueueAndSleep(COND_DISK_REQ + i * COND_PER_DISK);
+                  }
+                  for (int i = 0; i < requests.length; i++) {
+                     waitForDisk(i, requests[i]);
+                  }
                   return OK;
                case READ:
                   switch (param) {
@@ -242,6 +333,9 @@ public class Kernel {
                   return ERROR;
                case FORMAT: // to be implemented in project
                   if (fs.format(param) == true) { // 0 is true
+                     if (fs.isCached()) {
+                        cache.writeBackAll(); // the new superblock and inodes go to disk
+                     }
                      return OK;
                   } else {
                      return ERROR;
@@ -254,14 +348,71 @@ public class Kernel {
                      // something went wrong aka Error
                      return ERROR;
                   }
+               case DISKSCHED: // select a disk scheduling policy
+                  for (int i = 1; i < volume.getDevices(); i++) {
+                     volume.getDisk(i).setPolicy(param);
+                  }
+                  return volume.getDisk(0).setPolicy(param); // return the previous one
+               case DISKSTAT: // per-policy disk scheduling counters
+                  if (param < 0 || param >= Disk.policyNames.length) {
+                     return ERROR;
+                  }
+                  long[] stats = (long[]) args;
+                  long[] diskStats = new long[3];
+                  stats[0] = stats[1] = stats[2] = 0;
+                  for (int i = 0; i < volume.getDevices(); i++) { // summed over all disks
+                     volume.getDisk(i).getStatistics(param, diskStats);
+                     stats[0] += diskStats[0];
+                     stats[1] += diskStats[1];
+                     stats[2] += diskStats[2];
+                  }
+                  return OK;
+               case FLUSHCTL: // tune the cache flusher
+                  if (flusher == null) {
+                     return ERROR;
+                  }
+                  return flusher.set(param, ((int[]) args)[0]); // return the previous value
+               case FLUSHSTAT: // cache flusher counters
+                  if (flusher == null) {
+                     return ERROR;
+                  }
+                  flusher.getStatistics((long[]) args);
+                  return OK;
+               case CRESIZE: // resize the cache
+                  if (param <= 0) {
+                     return ERROR;
+                  }
+                  return cache.resize(param); // return the previous size
+               case CSTAT: // cache hits, misses and size
+                  cache.getStatistics((long[]) args);
+                  return OK;
+               case SYNCSTAT: // bytes written back to DISK by syncs, summed over all disks
+                  long[] syncStats = (long[]) args; // [0] = by the last sync, [1] = since boot
+                  syncStats[0] = syncStats[1] = 0;
+                  for (int i = 0; i < volume.getDevices(); i++) {
+                     syncStats[0] += volume.getDisk(i).getLastSyncBytes();
+                     syncStats[1] += volume.getDisk(i).getTotalSyncBytes();
+                  }
+                  return OK;
+               case FALLOCATE: // reserve the blocks of a file range
+                  if ((myTcb = scheduler.getMyTcb()) != null) {
+                     FileTableEntry ftEntry = myTcb.getFtEnt(param);
+                     if (ftEntry != null) {
+                        int[] range = (int[]) args;
+                        int reserved = fs.fallocate(ftEntry, range[0], range[1]);
+                        return (reserved < 0) ? ERROR : reserved; // # blocks reserved
+                     }
+                  }
+                  return ERROR;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            // ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+            // wake up the thread waiting for this request's completion,
+            // cmd = the disk, param = the request slot
+            ioQueue.dequeueAndWakeup(COND_DISK_FIN + cmd * COND_PER_DISK + param);
 
-            // wake up the thread waiting for a request acceptance
-            // ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+            // threads waiting for a request acceptance are woken up in
+            // waitForDisk( ) once the completed request frees its slot
 
             return OK;
          case INTERRUPT_IO: // other I/O interrupts (not implemented)
@@ -270,6 +421,86 @@ public class Kernel {
       return OK;
    }
 
+   // the pages of a raw I/O argument: a byte[] holding count blocks, or a
+   // ByteBuffer (RAWREAD/RAWWRITE) or ByteBuffer[] (RAWREADV/RAWWRITEV)
+   // whose pages are transferred in place
+   private static ByteBuffer[] pagesOf(Object args, int count) {
+      if (args instanceof ByteBuffer) {
+         return new ByteBuffer[] { (ByteBuffer) args };
+      } else if (args instanceof ByteBuffer[]) {
+         return (ByteBuffer[]) args;
+      }
+      return Disk.pagesOf((byte[]) args, count);
+   }
+
+   // Reading or writing logical blocks of the volume. The blocks are split
+   // by disk and every disk involved receives one request for its share,
+   // so that the disks transfer in parallel. Each disk moves its blocks
+   // straight between its image and the caller's pages.
+   private static int volumeIO(boolean write, int[] blocks, ByteBuffer[] pages) {
+      if (pages == null || pages.length < blocks.length) {
+         return ERROR;
+      }
+      int devices = volume.getDevices();
+      int[] requests = new int[devices];
+      int result = OK;
+
+      // submit each disk's share of the blocks
+      for (int d = 0; d < devices; d++) {
+         int[] indices = (devices == 1) ? null : volume.indicesOn(d, blocks);
+         int count = (indices == null) ? blocks.length : indices.length;
+         requests[d] = Disk.INVALID;
+         if (count == 0) {
+            continue;
+         }
+         int[] physical = new int[count];
+         ByteBuffer[] share = (indices == null) ? pages : new ByteBuffer[count];
+         for (int k = 0; k < count; k++) {
+            int i = (indices == null) ? k : indices[k];
+            physical[k] = volume.physicalOf(blocks[i]);
+            share[k] = pages[i];
+         }
+         if ((requests[d] = submit(d, write, physical, share)) == Disk.INVALID) {
+            result = ERROR;
+         }
+      }
+
+      // wait for all of them
+      for (int d = 0; d < devices; d++) {
+         if (requests[d] != Disk.INVALID) {
+            waitForDisk(d, requests[d]);
+         }
+      }
+      return result;
+   }
+
+   // Queueing a request on a disk, sleeping while its queue is full
+   private static int submit(int device, boolean write, int[] blocks, ByteBuffer[] pages) {
+      Disk disk = volume.getDisk(device);
+      int request;
+      while (true) {
+         request = write ? disk.write(blocks, pages) : disk.read(blocks, pages);
+         if (request != Disk.BUSY) {
+            return request;
+         }
+         ioQueue.enqueueAndSleep(COND_DISK_REQ + device * COND_PER_DISK); // wait for a free slot
+      }
+   }
+
+   // Sleeping until the disk interrupt for the given request. Each request
+   // slot has its own condition and receives exactly one wakeup, so
+   // concurrent I/O threads are never woken for each other's requests.
+   private static void waitForDisk(int device, int request) {
+      Disk disk = volume.getDisk(device);
+      ioQueue.enqueueAndSleep(COND_DISK_FIN + device * COND_PER_DISK + request);
+      disk.testAndResetReady(request); // release the request slot
+
+      // wake up the thread waiting for a request acceptance
+      if (disk.takeSlotWaiter()) {
+         ioQueue.dequeueAndWakeup(COND_DISK_REQ + device * COND_PER_DISK);
+      }
+   }
+
    // Spawning a new thread
    private static int sysExec(String args[]) {
       String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,41 @@
+/*
+ * @file LRUPolicy.java
+ * @brief CSS 430B O.S.
+ * Least recently used replacement over a linked list of frames, so that
+ * both an access and the choice of a victim take constant time.
+ */
+
+public class LRUPolicy implements CachePolicy {
+   private final static int USED = 0; // the only list
+
+   private FrameList lists;
+   private Cache.Segment segment; // to skip busy frames
+
+   public LRUPolicy(int frames, Cache.Segment segment) {
+      this.segment = segment;
+      lists = new FrameList(frames, 1);
+   }
+
+   public void missed(int blockId) {
+   }
+
+   public int victim(int blockId) {
+      int frame = lists.lastEvictable(USED, segment);
+      if (frame != FrameList.NONE) {
+         lists.remove(frame);
+      }
+      return frame;
+   }
+
+   public void filled(int frame, int blockId) {
+      lists.addFirst(USED, frame);
+   }
+
+   public void accessed(int frame) {
+      lists.addFirst(USED, frame);
+   }
+
+   public void removed(int frame) {
+      lists.remove(frame);
+   }
+}
@@ -0,0 +1,70 @@
+/*
+ * @file Prefetcher.java
+ * @brief CSS 430B O.S.
+ * A daemon that loads blocks into the cache ahead of sequential file
+ * reads. FileSystem.read hands it the blocks past the current read, and it
+ * fetches each batch with one vectored disk request while the reader is
+ * still busy with the blocks it asked for.
+ */
+
+public class Prefetcher extends Thread {
+   private final static int maxQueue = 64; // block#s waiting to be loaded
+
+   private Cache cache;
+   private int maxWindow; // # blocks a file may read ahead
+   private int[] queue;
+   private int head = 0;
+   private int count = 0;
+
+   public Prefetcher(Cache cache) {
+      this.cache = cache;
+      // read ahead no more than half of the cache, so that a window never
+      // evicts the blocks it has just loaded
+      maxWindow = Math.max(1, Math.min(32, cache.getFrames() / 2));
+      queue = new int[maxQueue];
+      setDaemon(true);
+   }
+
+   public int getMaxWindow() {
+      return maxWindow;
+   }
+
+   // queues the given blocks, skipping holes (negative block#s)
+   public synchronized void prefetch(int blocks[]) {
+      for (int i = 0; i < blocks.length; i++) {
+         if (blocks[i] < 0) {
+            continue;
+         }
+         if (count == queue.length) { // reading ahead is only a hint
+            break;
+         }
+         queue[(head + count++) % queue.length] = blocks[i];
+      }
+      notify();
+   }
+
+   // waits for queued blocks and moves up to batch.length of them to batch
+   private synchronized int take(int batch[]) {
+      while (count == 0) {
+         try {
+            wait();
+         } catch (InterruptedException e) {
+         }
+      }
+      int n = Math.min(count, batch.length);
+      for (int i = 0; i < n; i++) {
+         batch[i] = queue[head];
+         head = (head + 1) % queue.length;
+      }
+      count -= n;
+      return n;
+   }
+
+   public void run() {
+      int[] batch = new int[maxWindow];
+      while (true) {
+         int n = take(batch);
+         cache.prefetch(batch, n);
+      }
+   }
+}
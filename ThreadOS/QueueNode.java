@@ -9,7 +9,7 @@ public class QueueNode {
     }
 
     public synchronized int sleep( ) {
-	if ( tidQueue.size( ) == 0 ) {
+	while ( tidQueue.size( ) == 0 ) { // wakeups may arrive before sleep( )
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
@@ -0,0 +1,61 @@
+/*
+ * @file SecondChancePolicy.java
+ * @brief CSS 430B O.S.
+ * Enhanced second-chance (clock) replacement. Frames are ranked by their
+ * (reference, dirty) class: (0,0) is evicted first, then (0,1), so that a
+ * clean page is preferred over one that must be written back on the miss.
+ */
+
+public class SecondChancePolicy implements CachePolicy {
+   private Cache.Segment segment; // to see which frames are dirty or busy
+   private boolean[] reference;
+   private int victim; // the clock hand
+
+   public SecondChancePolicy(int frames, Cache.Segment segment) {
+      this.segment = segment;
+      reference = new boolean[frames];
+      victim = frames - 1;
+   }
+
+   public void missed(int blockId) {
+   }
+
+   public int victim(int blockId) {
+      // after two rounds every reference bit is clear, so a third finding
+      // nothing means that every frame is busy
+      for (int round = 0; round < 3; round++) {
+         // look for (0,0) without touching the reference bits
+         for (int i = 0; i < reference.length; i++) {
+            victim = (victim + 1) % reference.length;
+            if (reference[victim] == false && segment.isDirty(victim) == false
+                  && segment.isEvictable(victim)) {
+               return victim;
+            }
+         }
+         // then for (0,1), giving every referenced page a second chance
+         for (int i = 0; i < reference.length; i++) {
+            victim = (victim + 1) % reference.length;
+            if (segment.isEvictable(victim) == false) {
+               continue;
+            }
+            if (reference[victim] == false) {
+               return victim;
+            }
+            reference[victim] = false;
+         }
+      }
+      return -1;
+   }
+
+   public void filled(int frame, int blockId) {
+      reference[frame] = true;
+   }
+
+   public void accessed(int frame) {
+      reference[frame] = true;
+   }
+
+   public void removed(int frame) {
+      reference[frame] = false;
+   }
+}
@@ -3,33 +3,55 @@
  * @author Tammy Le & Dani Shaykho
  * @brief CSS 430B O.S.
  * Implemented: [d] sync, getFreeBlock, returnBlock, [t] format
+ * Free blocks are tracked by a bitmap, one bit per disk block, stored in
+ * the blocks right after the inodes and kept in memory while the disk is
+ * mounted. A set bit is a block in use. A disk formatted with the older
+ * free list gets a bitmap built from its inodes the first time it boots.
  * @date 03/06/2023
  */
 
 
 // import ThreadOS.Inode;
+import java.nio.ByteBuffer;
 
 public class SuperBlock {
    // Class constant
    private final int defaultInodeBlocks = 64;
+   private final int bitmapTag = 0x42495453; // marks a disk whose free blocks are in a bitmap
+   private final int bitsPerBlock = Disk.blockSize * 8;
+
+   // whether a block asked for near a hint goes to the free block closest
+   // to it, set from -DthreadOS.allocator at boot
+   public static boolean locality = true;
 
    // Instance variables
    public int totalBlocks; // the number of disk blocks
    public int totalInodes; // the number of inodes
-   public int freeList; // the block number of the free list's head
+   public int freeList; // the block number of the free-space bitmap's first block
+
+   private byte[] bitmap; // the bitmap blocks, one after another
+   private boolean[] bitmapDirty; // which bitmap blocks differ from disk
+   private int freeCount; // the number of free blocks
+   private int nextFree; // where the search for a free block starts
 
    // Constructor
    // derived from professor's pdf
    public SuperBlock(int diskSize) {
       // read the superblock from disk.
       byte[] superBlock = new byte[Disk.blockSize];
-      SysLib.rawread(0, superBlock);
+      FileSystem.readBlock(0, superBlock);
       totalBlocks = SysLib.bytes2int(superBlock, 0);
       totalInodes = SysLib.bytes2int(superBlock, 4);
       freeList = SysLib.bytes2int(superBlock, 8);
+      int tag = SysLib.bytes2int(superBlock, 12);
 
-      // check disk contents are valid.
-      if (totalBlocks == diskSize && totalInodes > 0 && freeList >= 2) {
+      // check disk contents are valid. A disk formatted with a free list
+      // instead of a bitmap has no tag, and freeList is then the head of
+      // that list.
+      if (totalBlocks == diskSize && totalInodes > 0 && freeList >= 2 && tag == bitmapTag) {
+         loadBitmap();
+      } else if (totalBlocks == diskSize && totalInodes > 0 && freeList >= 2
+            && convertFreeList()) {
          return;
       } else { // if invalid, call format( ).
          totalBlocks = diskSize;
@@ -38,16 +60,27 @@ public class SuperBlock {
    }
 
    // write back in-memory superblock to disk: SysLib.rawwrite( 0, superblock )
-   // aka write back totalBlocks, inodeBlocks, and freeList to disk
-   void sync() {
+   // aka write back totalBlocks, inodeBlocks, freeList and the bitmap blocks
+   // changed since the last sync
+   synchronized void sync() {
       byte[] superBlock = new byte[Disk.blockSize];
       SysLib.int2bytes(totalBlocks, superBlock, 0);
       SysLib.int2bytes(totalInodes, superBlock, 4);
       SysLib.int2bytes(freeList, superBlock, 8);
-      SysLib.rawwrite(0, superBlock);
+      SysLib.int2bytes(bitmapTag, superBlock, 12);
+      FileSystem.writeBlock(0, superBlock);
+
+      byte[] mapBlock = new byte[Disk.blockSize];
+      for (int i = 0; i < bitmapDirty.length; i++) {
+         if (bitmapDirty[i]) {
+            System.arraycopy(bitmap, i * Disk.blockSize, mapBlock, 0, Disk.blockSize);
+            FileSystem.writeBlock(freeList + i, mapBlock);
+            bitmapDirty[i] = false;
+         }
+      }
    }
 
-   public void format(int files) {
+   public synchronized void format(int files) {
       // error handling
       if (files < 0) {
          files = defaultInodeBlocks;
@@ -62,81 +95,285 @@ public class SuperBlock {
          inode.toDisk((short) i); // Look at Inode.java
       }
 
-      // set up freelist
+      // the bitmap starts right after the inode blocks
       if (files % 16 == 0) {
          freeList = ( files / 16 ) + 1;
       } else {
          freeList = ( files / 16 ) + 2;
       }
-      // Write the initialized free blocks to the disk.
-      for (int i = freeList; i < defaultInodeBlocks - 1; i++) {
-         byte[] emptyBlock = new byte[Disk.blockSize]; // Create a new block of zeros.
 
-         // Setting emptyBlock to empty (0)
-         for (int j = 0; j < Disk.blockSize; j++ ) {
-            emptyBlock[j] = 0;
-         }
-         SysLib.int2bytes(i + 1, emptyBlock, 0); // Write the block number to the first four bytes of the block.
-         SysLib.rawwrite(i, emptyBlock); // Write the block to the disk.
+      // every block is free but the superblock, the inodes and the bitmap
+      int mapBlocks = (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+      bitmap = new byte[mapBlocks * Disk.blockSize];
+      bitmapDirty = new boolean[mapBlocks];
+      freeCount = totalBlocks;
+      for (int i = 0; i < freeList + mapBlocks; i++) {
+         setUsed(i);
+      }
+      // the bits past the last block stand for blocks that do not exist
+      for (int i = totalBlocks; i < mapBlocks * bitsPerBlock; i++) {
+         bitmap[i / 8] |= 1 << (i % 8);
+      }
+      nextFree = freeList + mapBlocks;
+      for (int i = 0; i < mapBlocks; i++) {
+         bitmapDirty[i] = true;
       }
 
-      // Now, add the last blocks
-      byte[] lastBlock = new byte[Disk.blockSize];
-      SysLib.int2bytes(-1, lastBlock, 0); 
-      SysLib.rawwrite(defaultInodeBlocks - 1, lastBlock); // Write the last block to the disk.
+      // Update the SuperBlock and the bitmap on the disk.
+      sync();
+   }
+
+   // builds the bitmap of a disk formatted with a free list from what its
+   // inodes map: those blocks and the superblock and inodes are in use and
+   // every other one is free. The old list is no help, since the old
+   // format only linked the first blocks of the disk and never handed out
+   // the rest. The bitmap goes to the free blocks closest to the inodes
+   // and the disk is tagged, so that it boots with the bitmap from then
+   // on. Returns false if an inode maps a block past the disk or there is
+   // no room for the bitmap.
+   private boolean convertFreeList() {
+      int mapBlocks = (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+      bitmap = new byte[mapBlocks * Disk.blockSize];
+      bitmapDirty = new boolean[mapBlocks];
+      freeCount = totalBlocks;
+      for (int i = totalBlocks; i < mapBlocks * bitsPerBlock; i++) {
+         bitmap[i / 8] |= 1 << (i % 8);
+      }
+      for (int i = 0; i < inodeEnd() && i < totalBlocks; i++) {
+         setUsed(i);
+      }
+      for (short i = 0; i < totalInodes; i++) {
+         int[] blocks = new Inode(i).mappedBlocks(totalBlocks);
+         if (blocks == null) {
+            return false;
+         }
+         for (int j = 0; j < blocks.length; j++) {
+            if (isFree(blocks[j])) {
+               setUsed(blocks[j]);
+            }
+         }
+      }
 
-      // Update the SuperBlock on the disk.
+      int start = findFreeRun(mapBlocks, inodeEnd());
+      if (start == -1) {
+         return false;
+      }
+      freeList = start;
+      for (int i = 0; i < mapBlocks; i++) {
+         setUsed(start + i);
+         bitmapDirty[i] = true;
+      }
+      nextFree = inodeEnd();
       sync();
+      return true;
+   }
+
+   // the block right after the inode blocks
+   private int inodeEnd() {
+      return 1 + (totalInodes + 15) / 16;
+   }
+
+   // whether block holds the superblock, inodes or the bitmap
+   private boolean isMetadata(int block) {
+      return block < inodeEnd() || (block >= freeList && block < freeList + bitmapDirty.length);
    }
 
-   // dequeue the top block from the free list
-   public int getFreeBlock() {
-      if (freeList > 0 && freeList < totalBlocks) {
-         byte[] superBlock = new byte[Disk.blockSize];
-         SysLib.rawread(freeList, superBlock);
-         int freeBlockNumber = freeList;
-         freeList = SysLib.bytes2int(superBlock, 0);
-         return freeBlockNumber;
+   // reads the bitmap blocks of a mounted disk and counts the free blocks
+   private void loadBitmap() {
+      int mapBlocks = (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+      bitmap = new byte[mapBlocks * Disk.blockSize];
+      bitmapDirty = new boolean[mapBlocks];
+      byte[] mapBlock = new byte[Disk.blockSize];
+      for (int i = 0; i < mapBlocks; i++) {
+         FileSystem.readBlock(freeList + i, mapBlock);
+         System.arraycopy(mapBlock, 0, bitmap, i * Disk.blockSize, Disk.blockSize);
       }
-      return -1;
+      freeCount = 0;
+      for (int i = 0; i < totalBlocks; i++) {
+         if (isFree(i)) {
+            freeCount++;
+         }
+      }
+      nextFree = freeList + mapBlocks;
    }
 
-   // enqueue a given block to the end of the free list
-   // return this old block to the free list. The list can be a stack.
-   public boolean returnBlock(int oldBlockNumber) {
-      
-      if(oldBlockNumber > 0 && oldBlockNumber < totalBlocks) {   // check valid block #
-         int tempBlock;
-         int nextBlock = freeList;
+   private boolean isFree(int block) {
+      return (bitmap[block / 8] & (1 << (block % 8))) == 0;
+   }
+
+   private void setUsed(int block) {
+      bitmap[block / 8] |= 1 << (block % 8);
+      bitmapDirty[block / bitsPerBlock] = true;
+      freeCount--;
+   }
+
+   private void setFree(int block) {
+      bitmap[block / 8] &= ~(1 << (block % 8));
+      bitmapDirty[block / bitsPerBlock] = true;
+      freeCount++;
+   }
+
+   // returns the block a new file starts near: the first block past the
+   // inodes, so that files fill the disk from right next to them, since
+   // they are read on every open. returns 0, no hint, with
+   // -DthreadOS.allocator=nextfit.
+   public synchronized int homeBlock() {
+      if (locality == false || inodeEnd() >= totalBlocks) {
+         return 0;
+      }
+      return inodeEnd();
+   }
 
-			byte[] next = new byte[Disk.blockSize];
-			byte[] newBlock = new byte[Disk.blockSize];
+   // returns the number of free blocks
+   public synchronized int getFreeCount() {
+      return freeCount;
+   }
 
-			// clear newBlock
-			for(int i = 0; i < Disk.blockSize; i++) {
-				newBlock[i] = 0;
-			}
+   // takes the next free block at or after where the last search left off,
+   // wrapping around to the start of the disk. The search skips whole bytes
+   // of used blocks, and since it goes on from the block it handed out
+   // last, it looks at each byte about once per pass over the disk.
+   public synchronized int getFreeBlock() {
+      if (freeCount == 0) {
+         return -1;
+      }
+      int block = nextFree;
+      for (int n = 0; n <= totalBlocks; n++) {
+         if (block >= totalBlocks) {
+            block = 0;
+         }
+         if (block % 8 == 0 && bitmap[block / 8] == (byte) 0xff) {
+            n += 7;
+            block += 8;
+            continue;
+         }
+         if (isFree(block)) {
+            setUsed(block);
+            nextFree = block + 1;
+            return block;
+         }
+         block++;
+      }
+      return -1;
+   }
 
-			SysLib.int2bytes(-1, newBlock, 0);
+   // takes the block closest to the hint, so that a file's blocks stay
+   // near each other and near its inode: the hint itself if it is free,
+   // else a free block of its track, looking past it first, else one of
+   // the nearest track that has any, looking at the next track ahead
+   // before the one behind. Only the exact hint counts when started with
+   // -DthreadOS.allocator=nextfit, and the next free block is taken
+   // otherwise.
+   public synchronized int getFreeBlock(int hint) {
+      if (hint <= 0 || hint >= totalBlocks) {
+         return getFreeBlock();
+      }
+      if (isFree(hint)) {
+         setUsed(hint);
+         return hint;
+      }
+      if (locality == false || freeCount == 0) {
+         return getFreeBlock();
+      }
+      int track = hint / Disk.trackSize;
+      int tracks = (totalBlocks + Disk.trackSize - 1) / Disk.trackSize;
+      int block = freeOnTrack(track, hint);
+      for (int d = 1; block == -1 && (track + d < tracks || track - d >= 0); d++) {
+         block = freeOnTrack(track + d, 0);
+         if (block == -1) {
+            block = freeOnTrack(track - d, 0);
+         }
+      }
+      if (block == -1) {
+         return -1;
+      }
+      setUsed(block);
+      return block;
+   }
 
-			while (nextBlock != -1) {              // while not at end of list
-				
-            SysLib.rawread(nextBlock, next);    // store block content in next
+   // returns a free block of the given track, the first one past from if
+   // there is any, or -1
+   private int freeOnTrack(int track, int from) {
+      int first = track * Disk.trackSize;
+      int last = Math.min(first + Disk.trackSize, totalBlocks);
+      if (track < 0 || first >= totalBlocks) {
+         return -1;
+      }
+      for (int block = Math.max(first, from); block < last; block++) {
+         if (isFree(block)) {
+            return block;
+         }
+      }
+      for (int block = first; block < from && block < last; block++) {
+         if (isFree(block)) {
+            return block;
+         }
+      }
+      return -1;
+   }
 
-				tempBlock = SysLib.bytes2int(next, 0);
+   // returns the first block of a run of length free blocks, the one
+   // starting closest to the given block, a later one on a tie, or -1 if
+   // there is no such run
+   public synchronized int findFreeRun(int length, int from) {
+      if (length <= 0 || length > freeCount) {
+         return -1;
+      }
+      if (from <= 0 || from >= totalBlocks) {
+         from = nextFree;
+      }
+      int best = -1;
+      int runStart = -1;
+      for (int block = 0; block <= totalBlocks; block++) {
+         if (block < totalBlocks && isFree(block)) {
+            if (runStart == -1) {
+               runStart = block;
+            }
+            continue;
+         }
+         // a run of free blocks ends before block; the closest start of
+         // length of them in it is from itself, clamped into the run
+         if (runStart != -1 && block - runStart >= length) {
+            int start = Math.max(runStart, Math.min(from, block - length));
+            if (best == -1 || Math.abs(start - from) < Math.abs(best - from)) {
+               best = start;
+            }
+         }
+         runStart = -1;
+      }
+      return best;
+   }
 
-				if (tempBlock == -1) {
-					SysLib.int2bytes(oldBlockNumber, next, 0);
-					SysLib.rawwrite(nextBlock, next);
-					SysLib.rawwrite(oldBlockNumber, newBlock);
-					return true;
-				}
+   // takes blocks.length free blocks, in the run closest to the preferred
+   // block if there is one. When no run is long enough, each block is the
+   // one closest to the block right after the one before it. returns how
+   // many it got
+   public synchronized int getFreeBlocks(int[] blocks, int preferred) {
+      int start = findFreeRun(blocks.length, preferred);
+      if (start != -1) {
+         for (int i = 0; i < blocks.length; i++) {
+            setUsed(start + i);
+            blocks[i] = start + i;
+         }
+         return blocks.length;
+      }
+      for (int i = 0; i < blocks.length; i++) {
+         if ((blocks[i] = getFreeBlock(preferred)) == -1) {
+            return i;
+         }
+         preferred = blocks[i] + 1;
+      }
+      return blocks.length;
+   }
 
-				nextBlock = tempBlock;
-			}
+   // return this old block to the free blocks
+   public synchronized boolean returnBlock(int oldBlockNumber) {
+      if (oldBlockNumber < 0 || oldBlockNumber >= totalBlocks || isMetadata(oldBlockNumber)
+            || isFree(oldBlockNumber)) { // not a data block, or freed already
+         return false;
       }
-      
-      return false;
+      setFree(oldBlockNumber);
+      return true;
    }
 
 }
@@ -1,4 +1,5 @@
 import java.util.*; // SysLib_fil.java
+import java.nio.ByteBuffer;
 
 public class SysLib {
     public static int exec( String args[] ) {
@@ -26,9 +27,9 @@ public class SysLib {
 				 Kernel.SLEEP, milliseconds, null );
     }
 
-    public static int disk( ) {
+    public static int disk( int deviceId, int requestId ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
-				 0, 0, null );
+				 deviceId, requestId, null );
     }
 
     public static int cin( StringBuffer s ) {
@@ -56,6 +57,51 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // blks[i] is read into b[ i * Disk.blockSize ] by a single request
+    public static int rawreadv( int[] blkNumbers, byte[] b ) {
+	Object[] args = new Object[2];
+	args[0] = blkNumbers;
+	args[1] = b;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0, args );
+    }
+
+    public static int rawwritev( int[] blkNumbers, byte[] b ) {
+	Object[] args = new Object[2];
+	args[0] = blkNumbers;
+	args[1] = b;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0, args );
+    }
+
+    // the same, transferring straight to or from blockSize-byte pages,
+    // e.g. slices of a direct buffer, with no byte[] in between
+    public static int rawread( int blkNumber, ByteBuffer page ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREAD, blkNumber, page );
+    }
+
+    public static int rawwrite( int blkNumber, ByteBuffer page ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITE, blkNumber, page );
+    }
+
+    public static int rawreadv( int[] blkNumbers, ByteBuffer[] pages ) {
+	Object[] args = new Object[2];
+	args[0] = blkNumbers;
+	args[1] = pages;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0, args );
+    }
+
+    public static int rawwritev( int[] blkNumbers, ByteBuffer[] pages ) {
+	Object[] args = new Object[2];
+	args[0] = blkNumbers;
+	args[1] = pages;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0, args );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -162,4 +208,55 @@ public class SysLib {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.DELETE, 0, filename );
     }
+
+    // added for disk scheduling
+    public static int diskSched( int policy ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISKSCHED, policy, null );
+    }
+
+    public static int diskStat( int policy, long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISKSTAT, policy, stats );
+    }
+
+    // added for background cache write-back
+    public static int flushCtl( int param, int value ) {
+	int[] args = new int[1];
+	args[0] = value;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FLUSHCTL, param, args );
+    }
+
+    public static int flushStat( long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FLUSHSTAT, 0, stats );
+    }
+
+    // added for cache sizing
+    public static int cresize( int blocks ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CRESIZE, blocks, null );
+    }
+
+    public static int cstat( long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CSTAT, 0, stats );
+    }
+
+    // added for preallocating file blocks
+    public static int fallocate( int fd, int offset, int length ) {
+	int[] args = new int[2];
+	args[0] = offset;
+	args[1] = length;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FALLOCATE, fd, args );
+    }
+
+    // added for disk sync counters: stats[0] = bytes written back to
+    // DISK by the last sync, stats[1] = by all syncs since boot
+    public static int syncStat( long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SYNCSTAT, 0, stats );
+    }
 }
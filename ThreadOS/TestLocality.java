@@ -0,0 +1,120 @@
+// Measures how far the disk head travels for a Test5-style multi-file
+// workload: files of buf[512 * 13] are created, half of them deleted and
+// replaced, all grown a block at a time in turn, and read back. Run it
+// once as is and once after booting with -DthreadOS.allocator=nextfit to
+// compare the two allocators, with -DthreadOS.flusher=false so that no
+// background write-back adds to the counts.
+class TestLocality extends Thread {
+  final static int DEFAULTFILES = 24;
+  final static int BLOCKS = 13; // blocks each file is created with
+  final static int APPENDS = 4; // blocks then added to each file in turn
+  final int files;
+  final byte[] buf = new byte[512 * BLOCKS];
+  final byte[] block = new byte[512];
+  final long[] last = new long[2];
+  final long[] total = new long[2];
+
+  public TestLocality( String args[] ) {
+    files = Integer.parseInt( args[0] );
+  }
+
+  public TestLocality( ) {
+    files = DEFAULTFILES;
+  }
+
+  public void run( ) {
+    SysLib.format( 48 );
+    SysLib.cout( "allocator: " +
+                 System.getProperty( "threadOS.allocator", "locality" ) + "\n" );
+    boolean ok = true;
+    stats( );
+
+    for ( int i = 0; i < files; i++ )
+      create( i );
+    report( "create " + files + " files        " );
+
+    for ( int i = 0; i < files; i += 2 )
+      SysLib.delete( "loc" + i );
+    for ( int i = 0; i < files; i += 2 )
+      create( i );
+    report( "replace every other one" );
+
+    // every file grows by a block in turn, as when several logs are
+    // written at once
+    int[] fd = new int[files];
+    for ( int i = 0; i < files; i++ )
+      fd[i] = SysLib.open( "loc" + i, "a" );
+    for ( int r = BLOCKS; r < BLOCKS + APPENDS; r++ )
+      for ( int i = 0; i < files; i++ ) {
+        fill( block, 0, i, r );
+        SysLib.write( fd[i], block );
+      }
+    for ( int i = 0; i < files; i++ )
+      SysLib.close( fd[i] );
+    report( "interleaved appends    " );
+
+    for ( int i = 0; i < files; i++ )
+      ok &= check( i );
+    report( "read them all back     " );
+
+    SysLib.cout( "total: " + total[0] + " disk requests, " + total[1] +
+                 " tracks crossed\n" );
+    SysLib.cout( ok ? "Test completed\n" : "Test completed (wrong data)\n" );
+    SysLib.exit( );
+  }
+
+  // fills the r-th block of file i into b at offset
+  private void fill( byte[] b, int offset, int i, int r ) {
+    for ( int j = 0; j < 512; j++ )
+      b[offset + j] = ( byte )( i * 31 + r + j );
+  }
+
+  // creates file i with its first BLOCKS blocks in one write
+  private void create( int i ) {
+    for ( int r = 0; r < BLOCKS; r++ )
+      fill( buf, r * 512, i, r );
+    int fd = SysLib.open( "loc" + i, "w+" );
+    SysLib.write( fd, buf );
+    SysLib.close( fd );
+  }
+
+  // reads file i block by block and compares it
+  private boolean check( int i ) {
+    int fd = SysLib.open( "loc" + i, "r" );
+    byte[] tmpBuf = new byte[512];
+    boolean ok = fd != -1;
+    for ( int r = 0; ok && r < BLOCKS + APPENDS; r++ ) {
+      fill( block, 0, i, r );
+      ok = SysLib.read( fd, tmpBuf ) == 512 &&
+           java.util.Arrays.equals( tmpBuf, block );
+    }
+    SysLib.close( fd );
+    if ( !ok )
+      SysLib.cout( "loc" + i + " (wrong)\n" );
+    return ok;
+  }
+
+  // prints the disk requests and tracks crossed since the last call
+  private void report( String phase ) {
+    long[] now = stats( );
+    SysLib.cout( phase + ": " + now[0] + " disk requests, " + now[1] +
+                 " tracks crossed\n" );
+    total[0] += now[0];
+    total[1] += now[1];
+  }
+
+  // returns the counters summed over all scheduling policies since the
+  // last call
+  private long[] stats( ) {
+    long[] sum = new long[2];
+    long[] stats = new long[3];
+    for ( int p = 0; SysLib.diskStat( p, stats ) != -1; p++ ) {
+      sum[0] += stats[0];
+      sum[1] += stats[1];
+    }
+    long[] delta = { sum[0] - last[0], sum[1] - last[1] };
+    last[0] = sum[0];
+    last[1] = sum[1];
+    return delta;
+  }
+}
@@ -0,0 +1,58 @@
+// Checks a file whose first write lands past its start. The skipped
+// blocks must read back as zeros and the written ones intact, and after
+// booting with -DthreadOS.extents=true the file must still be given the
+// extent format even though its first block is not block 0.
+class TestSparse extends Thread {
+  final static int HOLE = 20; // blocks skipped before the first write
+  final static int INUMBER = 1; // the first file after format, inode 0 being /
+
+  public void run( ) {
+    boolean extents = Boolean.getBoolean( "threadOS.extents" );
+    SysLib.format( 48 );
+
+    byte[] data = new byte[512 * 3];
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte )( i * 7 + 1 );
+
+    int fd = SysLib.open( "sparse", "w+" );
+    SysLib.seek( fd, 512 * HOLE + 100, 0 );
+    SysLib.write( fd, data );
+    SysLib.close( fd );
+    SysLib.sync( );
+
+    boolean ok = true;
+    fd = SysLib.open( "sparse", "r" );
+    if ( SysLib.fsize( fd ) != 512 * HOLE + 100 + data.length ) {
+      SysLib.cout( "fsize = " + SysLib.fsize( fd ) + " (wrong)\n" );
+      ok = false;
+    }
+    byte[] hole = new byte[512 * HOLE + 100];
+    SysLib.read( fd, hole );
+    for ( int i = 0; ok && i < hole.length; i++ )
+      if ( hole[i] != 0 ) {
+        SysLib.cout( "hole byte " + i + " = " + hole[i] + " (wrong)\n" );
+        ok = false;
+      }
+    byte[] tmpBuf = new byte[data.length];
+    if ( SysLib.read( fd, tmpBuf ) != data.length ||
+         !java.util.Arrays.equals( tmpBuf, data ) ) {
+      SysLib.cout( "data after the hole (wrong)\n" );
+      ok = false;
+    }
+    SysLib.close( fd );
+    if ( ok )
+      SysLib.cout( "Correct behavior of reading a sparse file\n" );
+
+    // direct[0] follows length, count and flag in the on-disk inode
+    byte[] inodes = new byte[512];
+    SysLib.rawread( 1 + INUMBER / 16, inodes );
+    short first = SysLib.bytes2short( inodes, ( INUMBER % 16 ) * 32 + 8 );
+    if ( ( first == -2 ) == extents )
+      SysLib.cout( "Correct behavior of the format of a sparse file\n" );
+    else
+      SysLib.cout( "direct[0] = " + first + " (wrong)\n" );
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * @file TwoQueuePolicy.java
+ * @brief CSS 430B O.S.
+ * 2Q replacement (Johnson and Shasha). A block missed for the first time
+ * enters the FIFO A1in; only a block missed again while it is still
+ * remembered in the ghost queue A1out is promoted to the LRU queue Am.
+ * One long sequential read therefore passes through A1in without pushing
+ * the hot directory and inode blocks out of Am.
+ */
+
+import java.util.*;
+
+public class TwoQueuePolicy implements CachePolicy {
+   private final static int A1IN = 0;
+   private final static int AM = 1;
+
+   private FrameList lists;
+   private int[] blockOf; // the block cached in each frame
+   private LinkedHashSet<Integer> a1out; // block#s recently evicted from A1in
+   private int kin; // target size of A1in
+   private int kout; // maximum size of A1out
+   private Cache.Segment segment; // to skip busy frames
+
+   public TwoQueuePolicy(int frames, Cache.Segment segment) {
+      this.segment = segment;
+      lists = new FrameList(frames, 2);
+      blockOf = new int[frames];
+      a1out = new LinkedHashSet<Integer>();
+      kin = Math.max(1, frames / 4);
+      kout = Math.max(1, frames / 2);
+   }
+
+   public void missed(int blockId) {
+   }
+
+   public int victim(int blockId) {
+      int a1in = lists.lastEvictable(A1IN, segment);
+      int am = lists.lastEvictable(AM, segment);
+      int frame;
+      if (a1in != FrameList.NONE && (lists.size(A1IN) > kin || am == FrameList.NONE)) {
+         frame = a1in; // remember it in A1out
+         a1out.add(blockOf[frame]);
+         if (a1out.size() > kout) {
+            Iterator<Integer> oldest = a1out.iterator();
+            oldest.next();
+            oldest.remove();
+         }
+      } else if (am != FrameList.NONE) {
+         frame = am;
+      } else {
+         return FrameList.NONE;
+      }
+      lists.remove(frame);
+      return frame;
+   }
+
+   public void filled(int frame, int blockId) {
+      blockOf[frame] = blockId;
+      if (a1out.remove(blockId)) { // seen again: it is hot
+         lists.addFirst(AM, frame);
+      } else {
+         lists.addFirst(A1IN, frame);
+      }
+   }
+
+   public void accessed(int frame) {
+      if (lists.listOf(frame) == AM) {
+         lists.addFirst(AM, frame);
+      } // hits in A1in are correlated references and do not promote
+   }
+
+   public void removed(int frame) {
+      lists.remove(frame);
+   }
+}
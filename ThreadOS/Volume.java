@@ -0,0 +1,86 @@
+/*
+ * @file Volume.java
+ * @brief CSS 430B O.S.
+ * A striped (RAID-0) volume that presents one logical block device on top
+ * of several Disk threads. Logical blocks are dealt out to the disks in
+ * stripes of stripeSize consecutive blocks, so that independent blocks and
+ * the blocks of a long sequential transfer are serviced in parallel.
+ */
+
+public class Volume {
+   // Instance variables
+   private Disk disks[]; // the devices, each with its own backing file and thread
+   private int stripeSize; // # consecutive logical blocks per device
+   private int totalBlocks; // # logical blocks
+
+   // Constructor
+   // device 0 keeps the backing file "DISK", device i uses "DISK" + i
+   public Volume(int totalBlocks, int devices, int stripeSize, boolean mapDisk) {
+      this.totalBlocks = totalBlocks;
+      this.stripeSize = (stripeSize > 0) ? stripeSize : 1;
+      if (devices < 1) {
+         devices = 1;
+      }
+
+      // every device holds an equal share of the stripes
+      int stripes = (totalBlocks + this.stripeSize - 1) / this.stripeSize;
+      int deviceBlocks = (stripes + devices - 1) / devices * this.stripeSize;
+      disks = new Disk[devices];
+      for (int i = 0; i < devices; i++) {
+         String fileName = (i == 0) ? "DISK" : "DISK" + i;
+         disks[i] = new Disk(devices == 1 ? totalBlocks : deviceBlocks, fileName, i, mapDisk);
+      }
+   }
+
+   public int getDevices() {
+      return disks.length;
+   }
+
+   public Disk getDisk(int device) {
+      return disks[device];
+   }
+
+   public int getTotalBlocks() {
+      return totalBlocks;
+   }
+
+   // returns the device holding the given logical block
+   public int deviceOf(int blockId) {
+      if (blockId < 0 || blockId >= totalBlocks) {
+         return 0; // device 0 rejects it
+      }
+      return (blockId / stripeSize) % disks.length;
+   }
+
+   // returns the block number of the given logical block on its device
+   public int physicalOf(int blockId) {
+      if (blockId < 0 || blockId >= totalBlocks) {
+         return -1; // let the disk reject it
+      }
+      int stripe = blockId / stripeSize;
+      return (stripe / disks.length) * stripeSize + blockId % stripeSize;
+   }
+
+   // returns the indices i of blocks[] whose blocks[i] is on the given device
+   public int[] indicesOn(int device, int blocks[]) {
+      int count = 0;
+      for (int i = 0; i < blocks.length; i++) {
+         if (deviceOf(blocks[i]) == device) {
+            count++;
+         }
+      }
+      int[] indices = new int[count];
+      for (int i = 0, j = 0; i < blocks.length; i++) {
+         if (deviceOf(blocks[i]) == device) {
+            indices[j++] = i;
+         }
+      }
+      return indices;
+   }
+
+   public void start() {
+      for (int i = 0; i < disks.length; i++) {
+         disks[i].start();
+      }
+   }
+}